@@ -2,30 +2,123 @@
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Macro;
+import ij.Prefs;
 
 import ij.io.FileSaver;
 import ij.io.OpenDialog;  
 import ij.io.DirectoryChooser;
+import ij.io.RoiEncoder;
 
+import ij.gui.PolygonRoi;
 import ij.gui.Roi;
+import ij.gui.Wand;
 import ij.gui.GenericDialog;
 import ij.gui.NonBlockingGenericDialog;
 
 import ij.plugin.PlugIn;
 import ij.plugin.ChannelSplitter; 
 import ij.plugin.ImageCalculator;
-import ij.plugin.frame.RoiManager;
 import ij.plugin.RGBStackMerge;
 import ij.plugin.ZProjector;
+import ij.plugin.filter.EDM;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageConverter;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 
 import ij.measure.Calibration;
 import ij.measure.ResultsTable; 
 
+import loci.common.DataTools;
+import loci.formats.ChannelSeparator;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.out.TiffWriter;
+import loci.plugins.util.ImageProcessorReader;
+import loci.plugins.util.LociPrefs;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+
 import trainableSegmentation.*; 
+import weka.classifiers.AbstractClassifier;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.Utils;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.awt.Point; 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 
 
@@ -34,6 +127,21 @@ public class VessCoopJ_V4 implements PlugIn {
 	@Override
 	public void run(String arg) {
 
+		VesselPreprocessor.startRun();
+
+		// A SAVED PARAMETER PROFILE RUNS THE WHOLE FOLDER WITHOUT DIALOGS OR WINDOWS
+		// FROM THE PLUGINS MENU THERE ARE NO MACRO OPTIONS AT ALL
+		String macroOptions = arg != null && arg.contains("profile=") ? arg : Macro.getOptions();
+		String profilePath = macroOptions == null ? null : Macro.getValue(macroOptions, "profile", null);
+		if (profilePath != null) {
+			try {
+				ParameterProfile.load(new File(profilePath)).run();
+			} catch (IOException e) {
+				IJ.error("VessCoopJ", "Could not run profile " + profilePath + ":\n" + e.getMessage());
+			}
+			return;
+		}
+
 		// SELECT BLOOD VESSEL CHANNEL AND MIN SLICE
 		boolean globalBloodVesselImage = false;
 		NonBlockingGenericDialog findBloodVesselImage = new NonBlockingGenericDialog("Blood Vessel Channel Selection");
@@ -44,6 +152,11 @@ public class VessCoopJ_V4 implements PlugIn {
 		findBloodVesselImage.hideCancelButton();
 		int bloodVesselChannel = 0;
 		int minSlice = 0;
+
+		// THE DISK CACHE SET UP IN AN EARLIER RUN'S BATCH DIALOG, NULL IF THERE IS NONE
+		BatchOptions cachePrefs = new BatchOptions();
+		DiskCache.loadPrefs(cachePrefs);
+		DiskCache trainingCache = DiskCache.of(cachePrefs);
 		
 		  /////////////////////////////////////////
 		 // TRAIN A NEW BLOOD VESSEL CLASSIFIER //
@@ -73,6 +186,17 @@ public class VessCoopJ_V4 implements PlugIn {
 				if (!imagePath.endsWith(fileExtensionString)) {
 					continue;
 				}
+				// ONCE THE CHANNEL AND SLICE ARE SET FOR ALL IMAGES, A CACHED PROJECTION SPARES OPENING THE IMAGE
+				if (trainingCache != null && globalBloodVesselImage) {
+					DiskCache.Entry cached = trainingCache.get(ImagePipeline.preprocessedVesselsKey(DiskCache.source(img), bloodVesselChannel, minSlice));
+					if (cached != null) {
+						if (bloodVesselStack == null) {
+							bloodVesselStack = new ImageStack(cached.width, cached.height);
+						}
+						bloodVesselStack.addSlice(cached.processor(0));
+						continue;
+					}
+				}
 				IJ.run("Bio-Formats Importer" , "open=["+imagePath+"] color_mode=Default rois_import=[ROI manager] view=Hyperstack stack_order=XYCZT");
 				ImagePlus image = IJ.getImage();
 
@@ -99,8 +223,11 @@ public class VessCoopJ_V4 implements PlugIn {
 
 				// PREPROCESSING STEPS
 				// IJ.run(bloodVessels, "Subtract Background...", "rolling="+ Math.max(bloodVessels.getWidth(), bloodVessels.getHeight()));
-				IJ.run(bloodVessels, "Enhance Local Contrast (CLAHE)", "blocksize=127 histogram=255 maximum=3 mask=*None*");
-				IJ.run(bloodVessels, "Remove Outliers...", "radius=1 threshold=0 which=Bright");
+				VesselPreprocessor.apply(bloodVessels, Prefs.getThreads());
+				if (trainingCache != null) {
+					trainingCache.put(ImagePipeline.preprocessedVesselsKey(DiskCache.source(img), bloodVesselChannel, minSlice),
+							DiskCache.entry("", bloodVessels.getProcessor()));
+				}
 
 				if (bloodVesselStack == null) {
 					bloodVesselStack = bloodVessels.createEmptyStack();
@@ -165,7 +292,6 @@ public class VessCoopJ_V4 implements PlugIn {
 		classify.setOKLabel("Classify cells");
 		classify.setCancelLabel("Use thresholding");
 		classify.showDialog();
-		WekaSegmentation cellSegmentor = null;
 		String cellClassifierPath = null;
 
 		if (classify.wasOKed()) {
@@ -199,6 +325,17 @@ public class VessCoopJ_V4 implements PlugIn {
 					if (!imagePath.endsWith(fileExtensionString)) {
 						continue;
 					}
+					// ONCE ALL CHANNELS AND THE SLICE ARE SET FOR ALL IMAGES, A CACHED MERGE SPARES OPENING THE IMAGE
+					if (trainingCache != null && globalBloodVesselImage && globalCellImage1 && globalCellImage2) {
+						DiskCache.Entry cached = trainingCache.get(ImagePipeline.mergedCellsKey(DiskCache.source(img), cellChannel1, cellChannel2, minSlice));
+						if (cached != null) {
+							if (cellStack == null) {
+								cellStack = new ImageStack(cached.width, cached.height);
+							}
+							cellStack.addSlice(cached.processor(0));
+							continue;
+						}
+					}
 					IJ.run("Bio-Formats Importer" , "open=["+imagePath+"] color_mode=Default rois_import=[ROI manager] view=Hyperstack stack_order=XYCZT");
 					ImagePlus image = IJ.getImage();
 
@@ -249,6 +386,10 @@ public class VessCoopJ_V4 implements PlugIn {
 
 					// MERGE CELL CHANNELS FOR THRESHOLDING AND DETECTION
 					ImagePlus cells = new ImageCalculator().run("Max create", cells1, cells2);
+					if (trainingCache != null) {
+						trainingCache.put(ImagePipeline.mergedCellsKey(DiskCache.source(img), cellChannel1, cellChannel2, minSlice),
+								DiskCache.entry("", cells.getProcessor()));
+					}
 
 					if (cellStack == null) {
 						cellStack = cells.createEmptyStack();
@@ -335,16 +476,89 @@ public class VessCoopJ_V4 implements PlugIn {
 		String outputPath = output.getDirectory();
 
 
-		// PROCESS EACH IMAGE IN THE FOLDER
-		File folder = new File(folderPath);
-		File[] imageFiles = folder.listFiles();
-		for (File img : imageFiles) {
-			String imagePath = img.getAbsolutePath();
+		// PARALLEL PROCESSING OPTIONS
+		GenericDialog batchDialog = new GenericDialog("Batch Processing");
+		batchDialog.addMessage("Once every parameter is saved for all images, the remaining images are processed in parallel.");
+		BatchOptions options = new BatchOptions();
+		batchDialog.addNumericField("Parallel workers: ", options.workers, 0);
+		batchDialog.addMessage("Images are read and saved in the background while others are being analyzed.");
+		batchDialog.addNumericField("Images queued between stages: ", options.queueDepth, 0);
+		batchDialog.addNumericField("Background writer threads: ", options.writers, 0);
+		batchDialog.addCheckbox("Save _overlap.tif and _copy.tif previews", options.writePreviews);
+		batchDialog.addCheckbox("Save a _results.csv per image (all cells always go to " + ResultsStore.CSV_NAME + ")", options.writeImageResults);
+		batchDialog.addChoice("Preview TIFF compression: ", OutputWriter.COMPRESSIONS, options.compression);
+		batchDialog.addMessage("Large images are classified in tiles, so the Weka feature stacks fit in memory.");
+		batchDialog.addNumericField("Classifier tile size (pixels): ", options.tileSize, 0);
+		batchDialog.addNumericField("Classifier memory budget (MB): ", options.classifierMemoryMB, 0);
+		batchDialog.addNumericField("Image memory budget (MB): ", options.imageMemoryMB, 0);
+		batchDialog.addCheckbox("Skip images already processed with the same parameters (resume)", options.resume);
+		batchDialog.addCheckbox("Detect changed images by content hash (slower)", options.hashInputs);
+		batchDialog.addCheckbox("Record stage timings and memory use", options.profileStages);
+		AnalysisParameters params = new AnalysisParameters();
+		batchDialog.addMessage("Screening: classify at 1/N resolution, then reclassify only class borders and uncertain pixels (1 = full resolution).");
+		batchDialog.addNumericField("Coarse classification factor: ", params.coarseFactor, 0);
+		batchDialog.addNumericField("Refine below class probability: ", params.refineConfidence, 2);
+		batchDialog.addNumericField("Compare with full resolution every Nth image (0 = never): ", options.validateCoarseEvery, 0);
+		batchDialog.addMessage("3D overlap: also count each cell's voxels in classified vessels, N slices at a time (0 = 2D only).");
+		batchDialog.addNumericField("Slices per slab: ", params.volumeSlab, 0);
+		DiskCache.loadPrefs(options);
+		batchDialog.addMessage("Cached projections and feature stacks are reused when images are re-run or classifiers retrained.");
+		batchDialog.addCheckbox("Cache projections and feature stacks on disk", options.cache);
+		batchDialog.addStringField("Cache folder: ", options.cacheDirectory, 30);
+		batchDialog.addNumericField("Cache size limit (MB): ", options.cacheLimitMB, 0);
+		batchDialog.addMessage("While acquiring, new images can be analyzed as soon as the microscope has written them.");
+		batchDialog.addCheckbox("Keep watching the folder for new images", options.watch);
+		batchDialog.addNumericField("Seconds a new file must stay unchanged: ", options.settleSeconds, 0);
+		batchDialog.hideCancelButton();
+		batchDialog.showDialog();
+		options.workers = Math.max(1, (int)batchDialog.getNextNumber());
+		options.queueDepth = Math.max(1, (int)batchDialog.getNextNumber());
+		options.writers = Math.max(1, (int)batchDialog.getNextNumber());
+		options.writePreviews = batchDialog.getNextBoolean();
+		options.writeImageResults = batchDialog.getNextBoolean();
+		options.compression = batchDialog.getNextChoice();
+		options.resume = batchDialog.getNextBoolean();
+		options.hashInputs = batchDialog.getNextBoolean();
+		options.profileStages = batchDialog.getNextBoolean();
+		options.tileSize = Math.max(64, (int)batchDialog.getNextNumber());
+		options.classifierMemoryMB = Math.max(1, (long)batchDialog.getNextNumber());
+		options.imageMemoryMB = Math.max(1, (long)batchDialog.getNextNumber());
+		params.coarseFactor = Math.max(1, (int)batchDialog.getNextNumber());
+		params.refineConfidence = batchDialog.getNextNumber();
+		options.validateCoarseEvery = Math.max(0, (int)batchDialog.getNextNumber());
+		params.volumeSlab = Math.max(0, (int)batchDialog.getNextNumber());
+		options.cache = batchDialog.getNextBoolean();
+		options.cacheDirectory = batchDialog.getNextString();
+		options.cacheLimitMB = Math.max(1, (long)batchDialog.getNextNumber());
+		DiskCache.savePrefs(options);
+		options.watch = batchDialog.getNextBoolean();
+		options.settleSeconds = Math.max(0, (int)batchDialog.getNextNumber());
 
-			// IGNORE NON-IMAGE FILES
-			if (!imagePath.endsWith(fileExtensionString)) {
-				continue;
-			}
+		params.fileExtension = fileExtensionString;
+		params.outputPath = outputPath;
+		params.vesselClassifierPath = vesselClassifierPath;
+		params.classifyCells = classifyCells;
+		params.cellClassifierPath = cellClassifierPath;
+
+
+		// COLLECT IMAGES IN THE FOLDER
+		List<File> pendingImages = listImages(folderPath, fileExtensionString);
+
+		// EACH CLASSIFIER MODEL IS LOADED ONCE AND SHARED BY ALL IMAGES
+		ClassifierCache classifiers = new ClassifierCache(options.tileSize, options.classifierMemoryMB);
+		OutputWriter outputs = openOutputs(outputPath, options);
+		StageProfiler profiler = new StageProfiler(options.profileStages);
+
+		// RECORD OF WHAT HAS BEEN PROCESSED, SO AN INTERRUPTED RUN CAN BE RESUMED
+		RunManifest manifest = openManifest(outputPath, options);
+
+		// PROCESS IMAGES ONE AT A TIME UNTIL EVERY PARAMETER IS SAVED FOR ALL IMAGES. A CALIBRATED IMAGE
+		// DOES NOT FIX THE SCALE: A LATER UNCALIBRATED ONE STILL GETS THE SCALE DIALOG UNTIL ONE IS SAVED
+		int nextImage = 0;
+		while (nextImage < pendingImages.size() && !(globalBloodVesselImage && globalCellImage1 && globalCellImage2
+				&& (classifyCells || globalThreshold) && globalMinCellSize && globalScale)) {
+			File img = pendingImages.get(nextImage++);
+			String imagePath = img.getAbsolutePath();
 
 			// OPEN IMAGE
 			String imageName = img.getName().split(fileExtensionString)[0];
@@ -359,11 +573,15 @@ public class VessCoopJ_V4 implements PlugIn {
 			// GET SCALE		
 			Calibration c = image.getCalibration();
 
-			// SET SCALE
+			// SET SCALE. A CALIBRATED IMAGE KEEPS ITS SCALE TO ITSELF: ONLY A SCALE SAVED FOR ALL IMAGES
+			// IS USED FOR THE UNCALIBRATED IMAGES OF THE BATCH
+			double imagePixelWidth = pixelWidth;
+			double imagePixelHeight = pixelHeight;
+			String imageUnits = units;
 			if (c.scaled()) {
-				pixelWidth = c.pixelWidth;
-				pixelHeight = c.pixelHeight;
-				units = c.getUnit();
+				imagePixelWidth = c.pixelWidth;
+				imagePixelHeight = c.pixelHeight;
+				imageUnits = c.getUnit();
 
 			} else if (!globalScale) {
 				Roi scaleValue = null;
@@ -372,12 +590,14 @@ public class VessCoopJ_V4 implements PlugIn {
 				if (scaleDialog.wasOKed()) {
 					scaleValue = image.getRoi();
 					if(scaleValue!=null) {
-						pixelWidth = scaleDialog.getNextNumber() / scaleValue.getLength();
-						units = scaleDialog.getNextString();
+						imagePixelWidth = scaleDialog.getNextNumber() / scaleValue.getLength();
+						imageUnits = scaleDialog.getNextString();
 					}
 				}
 				if (scaleDialog.getNextBoolean()) {
 					globalScale = true;
+					pixelWidth = imagePixelWidth;
+					units = imageUnits;
 				}
 				if (globalBloodVesselImage && globalCellImage1 && globalCellImage2) {
 					image.hide();
@@ -418,187 +638,5544 @@ public class VessCoopJ_V4 implements PlugIn {
 				}
 				image.hide();
 			}
-			
-			// SPLIT CHANNELS
-			ImagePlus[] splitChannels = ChannelSplitter.split(image); 
-			image.close();
-			ImagePlus bloodVesselSlices = splitChannels[bloodVesselChannel-1];
-			ImagePlus cellSlices1 = splitChannels[cellChannel1-1];
-			ImagePlus cellSlices2 = splitChannels[cellChannel2-1];
 
-			// MAX PROJECT ALL SLICES ABOVE MIN SLICE
-			ImagePlus bloodVessels = ZProjector.run(bloodVesselSlices,"sum",minSlice,bloodVesselSlices.getNSlices());
-			ImagePlus cells1 = ZProjector.run(cellSlices1,"max",minSlice,cellSlices1.getNSlices());
-			ImagePlus cells2 = ZProjector.run(cellSlices2,"max",minSlice,cellSlices2.getNSlices());
+			params.bloodVesselChannel = bloodVesselChannel;
+			params.minSlice = minSlice;
+			params.cellChannel1 = cellChannel1;
+			params.cellChannel1Name = cellChannel1Name;
+			params.cellChannel2 = cellChannel2;
+			params.cellChannel2Name = cellChannel2Name;
+			ImagePipeline pipeline = new ImagePipeline(params, classifiers, outputs);
+			pipeline.manifest = manifest;
+			pipeline.profiler = profiler;
 
+			// SPLIT CHANNELS AND PROJECT ALL SLICES ABOVE MIN SLICE
+			Projections projections = pipeline.project(imageName, image);
+			image.close();
 
-			  ////////////////////////////
-			 // CELL SEGMENTATION STEP //
-			////////////////////////////
 
-			// MERGE CELL CHANNELS FOR THRESHOLDING AND DETECTION
-			ImagePlus cells = new ImageCalculator().run("Max create", cells1, cells2);
-			ImagePlus cellCopy = cells.duplicate();
+			try {
+				  ////////////////////////////
+				 // CELL SEGMENTATION STEP //
+				////////////////////////////
 
-			
-			if (classifyCells) {
-				// APPLY CLASSIFIER TO CELL IMAGE
-				cellSegmentor = new WekaSegmentation(cells);
-				cellSegmentor.loadClassifier(cellClassifierPath);
-				ImagePlus result = cellSegmentor.applyClassifier(cells);
-				cells.setImage(result);
+				ImagePlus cells;
+				if (classifyCells) {
+					// APPLY CLASSIFIER TO CELL IMAGE
+					cells = pipeline.classifyCells(imageName, projections.cells);
 
-			} else {
-				// CONVERT TO 8-BIT, AUTO LOCAL THRESHOLD, AND WATERSHED
-				ImageConverter.setDoScaling(true);
-				ImageConverter ic = new ImageConverter(cells);
-				ic.convertToGray8();
-				IJ.run(cells, "Auto Local Threshold", "method=Bernsen radius="+radius+" parameter_1="+threshold+" parameter_2=0 white");
-				IJ.run(cells, "Watershed", "");
+				} else {
+					// CONVERT TO 8-BIT, AUTO LOCAL THRESHOLD, AND WATERSHED
+					// THE 8-BIT IMAGE AND THE LOCAL MIN/MAX ARE KEPT, SO A PREVIEW ONLY REDOES WHAT CHANGED
+					BernsenThreshold bernsen = pipeline.bernsen(projections.cells);
+					cells = bernsen.apply(threshold, radius);
 				
-				// THRESHOLDING FOR CELLS
-				if (!globalThreshold) {
-					// cellCopy.show();
-					do {
-						cells.show();
-						thresholdDialog.showDialog();
-						threshold = thresholdDialog.getNextNumber();
-						radius = thresholdDialog.getNextNumber();
-						if (thresholdDialog.getNextBoolean()) {
-							globalThreshold = true;
-						}
-						if (thresholdDialog.wasCanceled()) {
-							cells.hide();
-							cells = cellCopy.duplicate();
-							ic = new ImageConverter(cells);
-							ic.convertToGray8();
-							IJ.run(cells, "Auto Local Threshold", "method=Bernsen radius="+radius+" parameter_1="+threshold+" parameter_2=0 white");
-							IJ.run(cells, "Watershed", "");
-						}
-					} while (thresholdDialog.wasCanceled() && !thresholdDialog.wasOKed());
+					// THRESHOLDING FOR CELLS
+					if (!globalThreshold) {
+						do {
+							cells.show();
+							thresholdDialog.showDialog();
+							threshold = thresholdDialog.getNextNumber();
+							radius = thresholdDialog.getNextNumber();
+							if (thresholdDialog.getNextBoolean()) {
+								globalThreshold = true;
+							}
+							if (thresholdDialog.wasCanceled()) {
+								cells.hide();
+								cells = bernsen.apply(threshold, radius);
+							}
+						} while (thresholdDialog.wasCanceled() && !thresholdDialog.wasOKed());
+						cells.hide();
+					}
+				}
+
+				// CALCULATE CELL AREAS AND MAX WIDTHS
+				if (!globalMinCellSize) {
+					cells.show();
+					cellDialog.showDialog();
+					minCellSize = cellDialog.getNextNumber();
+					if (cellDialog.getNextBoolean()) {
+						globalMinCellSize = true;
+					}
 					cells.hide();
-					// cellCopy.hide();
 				}
+
+				params.threshold = threshold;
+				params.radius = radius;
+				params.minCellSize = minCellSize;
+				params.units = units;
+				params.pixelWidth = pixelWidth;
+				params.pixelHeight = pixelHeight;
+				ImageResult result = pipeline.analyze(imageName, projections, cells, imagePixelWidth, imagePixelHeight, imageUnits);
+				result.file = img;
+				if (params.volumeSlab > 0) {
+					pipeline.measureVolume(result, projections, imagePixelWidth, imagePixelHeight);
+				}
+				pipeline.write(result);
+			} catch (IOException e) {
+				IJ.error("VessCoopJ", "Could not process " + img.getName() + ":\n" + e.getMessage());
+				return;
 			}
+		}
 
-			// CALCULATE CELL AREAS AND MAX WIDTHS
-			if (!globalMinCellSize) {
-				cells.show();
-				cellDialog.showDialog();
-				minCellSize = cellDialog.getNextNumber();
-				if (cellDialog.getNextBoolean()) {
-					globalMinCellSize = true;
+		// KEEP THE PARAMETERS, SO THE SAME ANALYSIS CAN BE REPEATED WITHOUT DIALOGS
+		try {
+			new ParameterProfile(folderPath, params, options).save(new File(outputPath, ParameterProfile.FILE_NAME));
+		} catch (IOException e) {
+			IJ.log("Could not save " + ParameterProfile.FILE_NAME + ": " + e.getMessage());
+		}
+
+		// PROCESS THE REMAINING IMAGES IN PARALLEL
+		List<File> batchImages = new ArrayList<File>(pendingImages.subList(nextImage, pendingImages.size()));
+		if (!options.watch) {
+			processBatch(batchImages, params.copy(), options, classifiers, outputs, manifest, profiler, null, null);
+			return;
+		}
+
+		// THEN NEW IMAGES AS THEY ARRIVE, UNTIL THE USER STOPS WATCHING
+		final FolderWatcher watcher = new FolderWatcher(new File(folderPath), fileExtensionString, new File(outputPath, FolderWatcher.STOP_FILE), options.settleSeconds);
+		watcher.ignore(pendingImages);
+		final NonBlockingGenericDialog watching = new NonBlockingGenericDialog("Watching for new images");
+		watching.addMessage("New " + fileExtensionString + " images in " + folderPath + " are analyzed as they arrive.");
+		watching.addMessage("Press OK to stop watching. Images already being analyzed are finished first.");
+		watching.hideCancelButton();
+		Thread stopDialog = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watching.showDialog();
+				watcher.stop();
+			}
+		}, "VessCoopJ-watch-dialog");
+		stopDialog.setDaemon(true);
+		stopDialog.start();
+		processBatch(batchImages, params.copy(), options, classifiers, outputs, manifest, profiler, watcher, null);
+		watching.dispose();
+	}
+
+
+	// SKIPS IMAGES WHOSE INPUT AND PARAMETERS HAVE NOT CHANGED SINCE THEY WERE LAST PROCESSED,
+	// RUNS THE REST THROUGH THE STAGED ENGINE AND REPORTS ON THE RUN. WITH A WATCHER, IMAGES
+	// ARRIVING IN THE FOLDER ARE ADDED UNTIL IT IS STOPPED. WITH LEASES, THIS IS ONE WORKER OF A
+	// SHARDED RUN: IT ONLY PROCESSES THE IMAGES IT CLAIMS, AND LEAVES ITS REPORTS FOR THE COORDINATOR.
+	static void processBatch(List<File> images, AnalysisParameters params, BatchOptions options, ClassifierCache classifiers,
+			OutputWriter outputs, RunManifest manifest, StageProfiler profiler, FolderWatcher watcher, LeaseQueue leases) {
+		final ImagePipeline pipeline = new ImagePipeline(params, classifiers, outputs);
+		pipeline.manifest = manifest;
+		pipeline.profiler = profiler;
+		final String fingerprint = manifest != null ? params.fingerprint() : null;
+		if (manifest != null && !images.isEmpty()) {
+			int skipped = 0;
+			for (Iterator<File> it = images.iterator(); it.hasNext(); ) {
+				if (isUpToDate(pipeline, fingerprint, it.next())) {
+					it.remove();
+					skipped++;
+				}
+			}
+			if (skipped > 0) {
+				IJ.log("Skipped " + skipped + " images already processed with the same parameters");
+			}
+		}
+
+		classifiers.validateCoarseEvery = options.validateCoarseEvery;
+		classifiers.disk = pipeline.cache = DiskCache.of(options);
+		if (watcher != null) {
+			IJ.log("Watching " + watcher.folder + " for new images; to stop, press OK or create " + watcher.stopFile);
+			new BatchEngine(pipeline, options).run(images, watcher, new FolderWatcher.Filter() {
+				@Override
+				public boolean accept(File img) {
+					return fingerprint == null || !isUpToDate(pipeline, fingerprint, img);
 				}
+			});
+		} else if (leases != null) {
+			new BatchEngine(pipeline, options).run(images, leases);
+		} else if (!images.isEmpty()) {
+			new BatchEngine(pipeline, options).run(images);
+		}
+		classifiers.report();
+		String driftFile = leases != null ? LeaseQueue.partName(ClassifierCache.DRIFT_FILE, leases.worker) : ClassifierCache.DRIFT_FILE;
+		try {
+			classifiers.writeDrift(params.outputPath + driftFile, outputs);
+		} catch (IOException e) {
+			IJ.log("Could not save " + driftFile + ": " + e.getMessage());
+		}
+		if (leases != null) {
+			String samplesFile = LeaseQueue.partName(StageProfiler.SAMPLES_FILE, leases.worker);
+			try {
+				profiler.writeSamples(new File(params.outputPath, samplesFile));
+			} catch (IOException e) {
+				IJ.log("Could not save " + samplesFile + ": " + e.getMessage());
+			}
+			return;
+		}
+		try {
+			profiler.writeSummary(params.outputPath + StageProfiler.SUMMARY_FILE, outputs);
+		} catch (IOException e) {
+			IJ.log("Could not save " + StageProfiler.SUMMARY_FILE + ": " + e.getMessage());
+		}
+		if (outputs.results != null && outputs.results.file.isFile()) {
+			try {
+				ResultsStore.exportCsv(outputs.results.file, new File(params.outputPath, ResultsStore.CSV_NAME));
+			} catch (IOException e) {
+				IJ.log("Could not save " + ResultsStore.CSV_NAME + ": " + e.getMessage());
 			}
-			IJ.run(cells, "Analyze Particles...", "size="+minCellSize+"-Infinity pixel exclude clear add");
+		}
+	}
 
-			// SAVE CELL ROIS
-			RoiManager rm = RoiManager.getInstance();
-			rm.save(outputPath + imageName + "_rois.zip");
-			Roi[] cellRois = rm.getRoisAsArray();
-			int numCells = rm.getCount();
 
-			// CALCULATE CELL MAX WIDTHS
-			double cellMaxWidths[] = new double[numCells];
-			for(int i = 0; i < numCells; i=i+1) {
-				cellMaxWidths[i] = cellRois[i].getFeretsDiameter() * pixelWidth;
+	private static boolean isUpToDate(ImagePipeline pipeline, String fingerprint, File img) {
+		try {
+			return pipeline.manifest.isUpToDate(img, fingerprint, pipeline.outputNames(img));
+		} catch (IOException e) {
+			// AN UNREADABLE INPUT IS LEFT IN THE BATCH SO THE FAILURE IS REPORTED THERE
+			return false;
+		}
+	}
+
+
+	// IMAGES OF A FOLDER WITH THE GIVEN EXTENSION, IN A STABLE ORDER
+	static List<File> listImages(String folderPath, String extension) {
+		List<File> images = new ArrayList<File>();
+		File[] files = new File(folderPath).listFiles();
+		if (files == null) {
+			return images;
+		}
+		Arrays.sort(files);
+		for (File img : files) {
+			// IGNORE NON-IMAGE FILES
+			if (img.getAbsolutePath().endsWith(extension)) {
+				images.add(img);
 			}
-			cells.hide();
+		}
+		return images;
+	}
 
+	// PER-IMAGE FILES AS THE OPTIONS ASK, EVERY CELL IN THE AGGREGATED RESULTS STORE
+	static OutputWriter openOutputs(String outputPath, BatchOptions options) {
+		OutputWriter outputs = new OutputWriter(options.compression, options.writePreviews);
+		outputs.writeImageResults = options.writeImageResults;
+		outputs.results = new ResultsStore(new File(outputPath, ResultsStore.FILE_NAME));
+		return outputs;
+	}
 
-			  ///////////////////////////////
-			 // BLOOD VESSEL SEGMENTATION //
-			///////////////////////////////
+	// NULL WHEN RESUMING IS OFF OR THE MANIFEST CANNOT BE READ
+	static RunManifest openManifest(String outputPath, BatchOptions options) {
+		if (!options.resume) {
+			return null;
+		}
+		try {
+			return new RunManifest(outputPath, options.hashInputs);
+		} catch (IOException e) {
+			IJ.log("Could not read " + RunManifest.FILE_NAME + ", all images will be processed: " + e.getMessage());
+			return null;
+		}
+	}
 
-			ImagePlus bloodVesselCopy = bloodVessels.duplicate();
-			bloodVessels.show();
 
-			// PREPROCESSING STEPS
-			// IJ.run(bloodVessels, "Subtract Background...", "rolling="+ Math.max(bloodVessels.getWidth(), bloodVessels.getHeight()));
-			IJ.run(bloodVessels, "Enhance Local Contrast (CLAHE)", "blocksize=127 histogram=255 maximum=3 mask=*None*");
-			IJ.run(bloodVessels, "Remove Outliers...", "radius=1 threshold=0 which=Bright");
+	// COMMAND LINE ENTRY POINT, e.g. java -cp "Fiji.app/jars/*:Fiji.app/plugins/*:." VessCoopJ_V4 profile=vesscoopj_profile.properties
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		if (args.length > 0 && args[0].equals("benchmark")) {
+			PipelineBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+		} else if (args.length == 1 && args[0].startsWith("profile=")) {
+			ParameterProfile.load(new File(args[0].substring("profile=".length()))).run();
+		} else if (args.length == 1 && args[0].equals("selftest")) {
+			SelfTest.main(new String[0]);
+		} else if (args.length > 0 && args[0].equals("shards")) {
+			ShardedRun.main(Arrays.copyOfRange(args, 1, args.length));
+		} else if (args.length > 0 && args[0].equals("worker")) {
+			// THE COORDINATOR WAITS FOR THIS PROCESS TO EXIT, WHATEVER THREADS ARE LEFT
+			try {
+				ShardedRun.worker(Arrays.copyOfRange(args, 1, args.length));
+			} catch (Exception e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+			System.exit(0);
+		} else if ((args.length == 2 || args.length == 3) && args[0].equals("export")) {
+			// ALSO WHILE A RUN IS STILL APPENDING TO THE STORE
+			File store = new File(args[1]);
+			File csv = args.length == 3 ? new File(args[2]) : new File(store.getAbsoluteFile().getParentFile(), ResultsStore.CSV_NAME);
+			ResultsStore.exportCsv(store, csv);
+		} else {
+			System.err.println("Usage: VessCoopJ_V4 profile=<" + ParameterProfile.FILE_NAME + ">");
+			System.err.println("       VessCoopJ_V4 " + ShardedRun.USAGE);
+			System.err.println("       VessCoopJ_V4 export <" + ResultsStore.FILE_NAME + "> [<" + ResultsStore.CSV_NAME + ">]");
+			System.err.println("       VessCoopJ_V4 " + PipelineBenchmark.USAGE);
+			System.err.println("       VessCoopJ_V4 selftest");
+			System.exit(1);
+		}
+	}
 
-			// APPLY CLASSIFIER TO BLOOD VESSEL IMAGE
-			WekaSegmentation vesselSegmentor = new WekaSegmentation(bloodVessels);
-			vesselSegmentor.loadClassifier(vesselClassifierPath);
-			ImagePlus result = vesselSegmentor.applyClassifier(bloodVessels);
-			bloodVessels.setImage(result);
 
-			// POSTPROCESSING STEPS
-			IJ.run(bloodVessels, "Multiply...", "value=2");
-			IJ.setThreshold(bloodVessels, 0, 1);
-			IJ.run(bloodVessels, "Convert to Mask", "");
+	// EVERY CHOICE THE DIALOGS MAKE, AS A PROPERTIES FILE. AN INTERACTIVE RUN SAVES ONE IN THE OUTPUT
+	// FOLDER; RUNNING WITH profile=<file> (MACRO OPTION OR COMMAND LINE) REPEATS IT WITH NO GUI AT ALL.
+	static class ParameterProfile {
+		static final String FILE_NAME = "vesscoopj_profile.properties";
 
-			// COMBINE RESULTS AND CALCULATE AREA OF EACH CELL OVERLAPPING WITH BLOOD VESSEL
-			ImagePlus overlapping = new ImageCalculator().run("AND create", cells, bloodVessels);
+		final String inputPath;
+		final AnalysisParameters params;
+		final BatchOptions options;
 
-			// APPLY COLOR TO CHANNELS FOR VISUALIZATION
-			IJ.run(bloodVessels, "Red", "");
-			IJ.run(cells, "Green", "");
-			IJ.run(overlapping, "Blue", "");
+		ParameterProfile(String inputPath, AnalysisParameters params, BatchOptions options) {
+			this.inputPath = inputPath;
+			this.params = params;
+			this.options = options;
+		}
 
-			// MERGE AS RGB IMAGE AND SAVE
-			ImagePlus[] imageArray = new ImagePlus[]{ bloodVessels, cells, overlapping };
-			ImagePlus mergedOverlap = RGBStackMerge.mergeChannels(imageArray, false);
-			FileSaver fsOverlap = new FileSaver(mergedOverlap);
-			fsOverlap.saveAsTiff(outputPath + imageName + "_overlap.tif");
+		static ParameterProfile load(File file) throws IOException {
+			Properties p = new Properties();
+			InputStream in = new FileInputStream(file);
+			try {
+				p.load(in);
+			} finally {
+				in.close();
+			}
+			AnalysisParameters params = new AnalysisParameters();
+			params.fileExtension = p.getProperty("fileExtension", params.fileExtension);
+			params.outputPath = folder(required(p, "outputPath"));
+			params.bloodVesselChannel = Integer.parseInt(required(p, "bloodVesselChannel"));
+			params.minSlice = Integer.parseInt(p.getProperty("minSlice", "1"));
+			params.cellChannel1 = Integer.parseInt(required(p, "cellChannel1"));
+			params.cellChannel1Name = p.getProperty("cellChannel1Name", params.cellChannel1Name);
+			params.cellChannel2 = Integer.parseInt(required(p, "cellChannel2"));
+			params.cellChannel2Name = p.getProperty("cellChannel2Name", params.cellChannel2Name);
+			params.vesselClassifierPath = required(p, "vesselClassifierPath");
+			params.classifyCells = Boolean.parseBoolean(p.getProperty("classifyCells", "false"));
+			params.cellClassifierPath = params.classifyCells ? required(p, "cellClassifierPath") : p.getProperty("cellClassifierPath");
+			params.threshold = Double.parseDouble(p.getProperty("threshold", Double.toString(params.threshold)));
+			params.radius = Double.parseDouble(p.getProperty("radius", Double.toString(params.radius)));
+			params.minCellSize = Double.parseDouble(p.getProperty("minCellSize", Double.toString(params.minCellSize)));
+			// ONLY USED FOR IMAGES WITHOUT A CALIBRATION OF THEIR OWN
+			params.units = p.getProperty("units", params.units);
+			params.pixelWidth = Double.parseDouble(p.getProperty("pixelWidth", Double.toString(params.pixelWidth)));
+			params.pixelHeight = Double.parseDouble(p.getProperty("pixelHeight", Double.toString(params.pixelHeight)));
+			params.coarseFactor = Math.max(1, Integer.parseInt(p.getProperty("coarseFactor", Integer.toString(params.coarseFactor))));
+			params.refineConfidence = Double.parseDouble(p.getProperty("refineConfidence", Double.toString(params.refineConfidence)));
+			params.volumeSlab = Math.max(0, Integer.parseInt(p.getProperty("volumeSlab", Integer.toString(params.volumeSlab))));
 
-			// ALSO MERGE RAW IMAGES FOR COMPARISON
-			ImagePlus[] imageCopy = new ImagePlus[]{ bloodVesselCopy, cells1, cells2 };
-			ImagePlus mergedCopy = RGBStackMerge.mergeChannels(imageCopy, false);
-			FileSaver fsCopy = new FileSaver(mergedCopy);
-			fsCopy.saveAsTiff(outputPath + imageName + "_copy.tif");
+			BatchOptions options = new BatchOptions();
+			options.workers = Math.max(1, Integer.parseInt(p.getProperty("workers", Integer.toString(options.workers))));
+			options.queueDepth = Math.max(1, Integer.parseInt(p.getProperty("queueDepth", Integer.toString(options.queueDepth))));
+			options.readers = Math.max(1, Integer.parseInt(p.getProperty("readers", Integer.toString(options.readers))));
+			options.writers = Math.max(1, Integer.parseInt(p.getProperty("writers", Integer.toString(options.writers))));
+			options.writePreviews = Boolean.parseBoolean(p.getProperty("writePreviews", Boolean.toString(options.writePreviews)));
+			options.writeImageResults = Boolean.parseBoolean(p.getProperty("writeImageResults", Boolean.toString(options.writeImageResults)));
+			options.compression = p.getProperty("compression", options.compression);
+			if (!Arrays.asList(OutputWriter.COMPRESSIONS).contains(options.compression)) {
+				throw new IOException("Unknown compression '" + options.compression + "', use one of " + Arrays.toString(OutputWriter.COMPRESSIONS));
+			}
+			options.resume = Boolean.parseBoolean(p.getProperty("resume", Boolean.toString(options.resume)));
+			options.hashInputs = Boolean.parseBoolean(p.getProperty("hashInputs", Boolean.toString(options.hashInputs)));
+			options.profileStages = Boolean.parseBoolean(p.getProperty("profileStages", Boolean.toString(options.profileStages)));
+			options.tileSize = Math.max(64, Integer.parseInt(p.getProperty("tileSize", Integer.toString(options.tileSize))));
+			options.classifierMemoryMB = Math.max(1, Long.parseLong(p.getProperty("classifierMemoryMB", Long.toString(options.classifierMemoryMB))));
+			options.imageMemoryMB = Math.max(1, Long.parseLong(p.getProperty("imageMemoryMB", Long.toString(options.imageMemoryMB))));
+			options.validateCoarseEvery = Math.max(0, Integer.parseInt(p.getProperty("validateCoarseEvery", Integer.toString(options.validateCoarseEvery))));
+			options.cache = Boolean.parseBoolean(p.getProperty("cache", Boolean.toString(options.cache)));
+			options.cacheDirectory = p.getProperty("cacheDirectory", options.cacheDirectory);
+			options.cacheLimitMB = Math.max(1, Long.parseLong(p.getProperty("cacheLimitMB", Long.toString(options.cacheLimitMB))));
+			options.watch = Boolean.parseBoolean(p.getProperty("watch", Boolean.toString(options.watch)));
+			options.settleSeconds = Math.max(0, Integer.parseInt(p.getProperty("settleSeconds", Integer.toString(options.settleSeconds))));
+			return new ParameterProfile(folder(required(p, "inputPath")), params, options);
+		}
 
-			// CALCULATE CELL-VESSEL OVERLAP AND META DATA
-			double cellVesselOverlap[] = new double[numCells];
-			double cellAreas[] = new double[numCells];
-			double percentageOverlap[] = new double[numCells];
-			double averageIntensity1[] = new double[numCells];
-			double averageIntensity2[] = new double[numCells];
-			for(int i = 0; i < numCells; ++i) {
-				Roi currCell = cellRois[i];
-				Point[] roiPoints = currCell.getContainedPoints();
-				double currCellVesselOverlap = 0;
-				double totalCell = 0;
-				double totalIntensity1 = 0;
-				double totalIntensity2 = 0;
-				for (Point p: roiPoints) {
-					totalCell += 1;
-					if (overlapping.getPixel(p.x, p.y)[0] > 0) {
-						currCellVesselOverlap += 1;
-					}
-					totalIntensity1 += cells1.getPixel(p.x, p.y)[0];
-					totalIntensity2 += cells2.getPixel(p.x, p.y)[0];
+		private static String required(Properties p, String key) throws IOException {
+			String value = p.getProperty(key);
+			if (value == null || value.trim().isEmpty()) {
+				throw new IOException("Missing '" + key + "' in the parameter profile");
+			}
+			return value.trim();
+		}
+
+		// THE PIPELINE APPENDS FILE NAMES TO FOLDER PATHS
+		private static String folder(String path) {
+			return path.endsWith(File.separator) || path.endsWith("/") ? path : path + File.separator;
+		}
+
+		void save(File file) throws IOException {
+			Properties p = new Properties();
+			p.setProperty("inputPath", inputPath);
+			p.setProperty("fileExtension", params.fileExtension);
+			p.setProperty("outputPath", params.outputPath);
+			p.setProperty("bloodVesselChannel", Integer.toString(params.bloodVesselChannel));
+			p.setProperty("minSlice", Integer.toString(params.minSlice));
+			p.setProperty("cellChannel1", Integer.toString(params.cellChannel1));
+			p.setProperty("cellChannel1Name", params.cellChannel1Name);
+			p.setProperty("cellChannel2", Integer.toString(params.cellChannel2));
+			p.setProperty("cellChannel2Name", params.cellChannel2Name);
+			p.setProperty("vesselClassifierPath", params.vesselClassifierPath);
+			p.setProperty("classifyCells", Boolean.toString(params.classifyCells));
+			if (params.cellClassifierPath != null) {
+				p.setProperty("cellClassifierPath", params.cellClassifierPath);
+			}
+			p.setProperty("threshold", Double.toString(params.threshold));
+			p.setProperty("radius", Double.toString(params.radius));
+			p.setProperty("minCellSize", Double.toString(params.minCellSize));
+			p.setProperty("units", params.units);
+			p.setProperty("pixelWidth", Double.toString(params.pixelWidth));
+			p.setProperty("pixelHeight", Double.toString(params.pixelHeight));
+			p.setProperty("coarseFactor", Integer.toString(params.coarseFactor));
+			p.setProperty("refineConfidence", Double.toString(params.refineConfidence));
+			p.setProperty("volumeSlab", Integer.toString(params.volumeSlab));
+			p.setProperty("workers", Integer.toString(options.workers));
+			p.setProperty("queueDepth", Integer.toString(options.queueDepth));
+			p.setProperty("readers", Integer.toString(options.readers));
+			p.setProperty("writers", Integer.toString(options.writers));
+			p.setProperty("writePreviews", Boolean.toString(options.writePreviews));
+			p.setProperty("writeImageResults", Boolean.toString(options.writeImageResults));
+			p.setProperty("compression", options.compression);
+			p.setProperty("resume", Boolean.toString(options.resume));
+			p.setProperty("hashInputs", Boolean.toString(options.hashInputs));
+			p.setProperty("profileStages", Boolean.toString(options.profileStages));
+			p.setProperty("tileSize", Integer.toString(options.tileSize));
+			p.setProperty("classifierMemoryMB", Long.toString(options.classifierMemoryMB));
+			p.setProperty("imageMemoryMB", Long.toString(options.imageMemoryMB));
+			p.setProperty("validateCoarseEvery", Integer.toString(options.validateCoarseEvery));
+			p.setProperty("cache", Boolean.toString(options.cache));
+			p.setProperty("cacheDirectory", options.cacheDirectory);
+			p.setProperty("cacheLimitMB", Long.toString(options.cacheLimitMB));
+			p.setProperty("watch", Boolean.toString(options.watch));
+			p.setProperty("settleSeconds", Integer.toString(options.settleSeconds));
+			OutputStream out = new FileOutputStream(file);
+			try {
+				p.store(out, "VessCoopJ parameter profile");
+			} finally {
+				out.close();
+			}
+		}
+
+		// EVERY IMAGE OF THE INPUT FOLDER GOES STRAIGHT TO THE STAGED ENGINE: NOTHING IS OPENED
+		// THROUGH IJ.getImage(), SHOWN, HIDDEN OR ASKED FOR
+		void run() throws IOException {
+			VesselPreprocessor.startRun();
+			if (!new File(inputPath).isDirectory()) {
+				throw new IOException("Input folder " + inputPath + " does not exist");
+			}
+			File outputFolder = new File(params.outputPath);
+			if (!outputFolder.isDirectory() && !outputFolder.mkdirs()) {
+				throw new IOException("Could not create output folder " + params.outputPath);
+			}
+			List<File> images = listImages(inputPath, params.fileExtension);
+			IJ.log("Processing " + images.size() + " images from " + inputPath);
+			ClassifierCache classifiers = new ClassifierCache(options.tileSize, options.classifierMemoryMB);
+			OutputWriter outputs = openOutputs(params.outputPath, options);
+			StageProfiler profiler = new StageProfiler(options.profileStages);
+			// WITHOUT A DISPLAY, WATCHING ENDS WHEN THE STOP FILE APPEARS IN THE OUTPUT FOLDER
+			FolderWatcher watcher = null;
+			if (options.watch) {
+				watcher = new FolderWatcher(new File(inputPath), params.fileExtension, new File(params.outputPath, FolderWatcher.STOP_FILE), options.settleSeconds);
+				watcher.ignore(images);
+			}
+			processBatch(images, params, options, classifiers, outputs, openManifest(params.outputPath, options), profiler, watcher, null);
+		}
+	}
+
+
+	// PARAMETERS THAT ARE FIXED FOR EVERY IMAGE OF A BATCH
+	static class AnalysisParameters {
+		String fileExtension = ".nd2";
+		String outputPath;
+		int bloodVesselChannel;
+		int minSlice;
+		int cellChannel1;
+		int cellChannel2;
+		String cellChannel1Name = "Cell Channel 1";
+		String cellChannel2Name = "Cell Channel 2";
+		String vesselClassifierPath;
+		boolean classifyCells;
+		String cellClassifierPath;
+		double threshold = 15;
+		double radius = 15;
+		double minCellSize = 20;
+		// USED WHEN THE IMAGE ITSELF IS NOT CALIBRATED
+		String units = "pixels";
+		double pixelWidth = 1.0;
+		double pixelHeight = 1.0;
+		// SCREENING: CLASSIFY AT 1/coarseFactor RESOLUTION AND RECLASSIFY AT FULL RESOLUTION ONLY
+		// CLASS BORDERS AND PIXELS WHOSE COARSE CLASS PROBABILITY IS BELOW refineConfidence
+		int coarseFactor = 1;
+		double refineConfidence = 0.9;
+		// SLICES PER SLAB OF THE VOLUMETRIC OVERLAP PASS, 0 FOR THE 2D COLUMNS ONLY
+		int volumeSlab = 0;
+
+		AnalysisParameters copy() {
+			AnalysisParameters p = new AnalysisParameters();
+			p.fileExtension = fileExtension;
+			p.outputPath = outputPath;
+			p.bloodVesselChannel = bloodVesselChannel;
+			p.minSlice = minSlice;
+			p.cellChannel1 = cellChannel1;
+			p.cellChannel2 = cellChannel2;
+			p.cellChannel1Name = cellChannel1Name;
+			p.cellChannel2Name = cellChannel2Name;
+			p.vesselClassifierPath = vesselClassifierPath;
+			p.classifyCells = classifyCells;
+			p.cellClassifierPath = cellClassifierPath;
+			p.threshold = threshold;
+			p.radius = radius;
+			p.minCellSize = minCellSize;
+			p.units = units;
+			p.pixelWidth = pixelWidth;
+			p.pixelHeight = pixelHeight;
+			p.coarseFactor = coarseFactor;
+			p.refineConfidence = refineConfidence;
+			p.volumeSlab = volumeSlab;
+			return p;
+		}
+
+		// EVERYTHING THAT CHANGES THE OUTPUT OF AN IMAGE, INCLUDING WHICH MODEL FILE SITS AT EACH CLASSIFIER PATH
+		String fingerprint() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("vessel=").append(bloodVesselChannel)
+				.append(";minSlice=").append(minSlice)
+				.append(";cell1=").append(cellChannel1).append(':').append(cellChannel1Name)
+				.append(";cell2=").append(cellChannel2).append(':').append(cellChannel2Name)
+				.append(";threshold=").append(threshold)
+				.append(";radius=").append(radius)
+				.append(";minCellSize=").append(minCellSize)
+				.append(";scale=").append(pixelWidth).append('x').append(pixelHeight).append(units)
+				.append(";vesselClassifier=").append(fileIdentity(vesselClassifierPath))
+				.append(";classifyCells=").append(classifyCells);
+			if (classifyCells) {
+				sb.append(";cellClassifier=").append(fileIdentity(cellClassifierPath));
+			}
+			if (coarseFactor > 1) {
+				sb.append(";coarse=").append(coarseFactor).append('@').append(refineConfidence);
+			}
+			if (volumeSlab > 0) {
+				sb.append(";volumeSlab=").append(volumeSlab);
+			}
+			return RunManifest.sha256(sb.toString().getBytes(StandardCharsets.UTF_8));
+		}
+
+		private static String fileIdentity(String path) {
+			if (path == null) {
+				return "none";
+			}
+			File f = new File(path);
+			return f.getAbsolutePath() + "@" + f.length() + "@" + f.lastModified();
+		}
+	}
+
+
+	// HOW THE BATCH IS RUN; NONE OF THESE CHANGE THE RESULTS
+	static class BatchOptions {
+		int workers = BatchEngine.defaultWorkers();
+		// IMAGES WAITING BETWEEN STAGES; BOUNDS MEMORY WHEN ONE STAGE IS SLOWER THAN THE OTHERS
+		int queueDepth = 2;
+		int readers = 2;
+		int writers = 1;
+		boolean writePreviews = true;
+		// ONE OF OutputWriter.COMPRESSIONS
+		String compression = OutputWriter.NONE;
+		// SKIP IMAGES RECORDED IN THE RUN MANIFEST WITH THE SAME INPUT AND PARAMETERS
+		boolean resume = true;
+		// IDENTIFY INPUTS BY SHA-256 INSTEAD OF SIZE AND MODIFICATION TIME
+		boolean hashInputs = false;
+		// WRITE <image>_timing.csv FOR EVERY IMAGE AND A P50/P95 SUMMARY OF THE RUN
+		boolean profileStages = false;
+		// IMAGES LARGER THAN ONE TILE ARE CLASSIFIED TILE BY TILE
+		int tileSize = 2048;
+		// SHARED BY ALL TILES IN FLIGHT, ACROSS ALL WORKERS
+		long classifierMemoryMB = Math.max(256, IJ.maxMemory() / (2L << 20));
+		// SHARED BY THE IMAGES IN FLIGHT, NOT COUNTING THEIR FEATURE STACKS; SEE AdmissionControl
+		long imageMemoryMB = Math.max(256, IJ.maxMemory() * 2 / 5 >> 20);
+		// ALSO CLASSIFY EVERY NTH COARSE-TO-FINE IMAGE AT FULL RESOLUTION AND REPORT THE DIFFERENCE, 0 = NEVER
+		int validateCoarseEvery = 0;
+		// KEEP PROJECTIONS, PREPROCESSED VESSELS AND FEATURE STACKS ON DISK FOR LATER RUNS AND TRAINING
+		boolean cache = false;
+		String cacheDirectory = DiskCache.defaultDirectory();
+		long cacheLimitMB = 8192;
+		// AFTER THE FOLDER, KEEP PROCESSING IMAGES AS THEY ARRIVE UNTIL STOPPED
+		boolean watch = false;
+		// A NEW FILE IS ONLY READ ONCE ITS SIZE AND DATE HAVE NOT CHANGED FOR THIS LONG
+		int settleSeconds = 5;
+		// EVERY IMAGE'S CELLS ALSO GO TO THE AGGREGATED RESULTS STORE; THIS ADDS ONE CSV PER IMAGE
+		boolean writeImageResults = true;
+	}
+
+
+	// WHAT THE READ STAGE HANDS TO THE COMPUTE STAGE
+	static class LoadedImage {
+		File file;
+		String imageName;
+		Projections projections;
+		double pixelWidth;
+		double pixelHeight;
+		String units;
+		// THE READ STAGE'S READER, KEPT OPEN FOR THE VOLUME PASS SO ITS METADATA IS NOT PARSED AGAIN
+		ImageProcessorReader reader;
+
+		void closeReader() {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// NOTHING IS READ FROM IT ANY MORE
 				}
-				cellVesselOverlap[i] = (double)currCellVesselOverlap * pixelWidth * pixelHeight;
-				cellAreas[i] = (double)totalCell * pixelWidth * pixelHeight;
-				percentageOverlap[i] = (cellVesselOverlap[i] / cellAreas[i]) * 100;
-				averageIntensity1[i] = totalIntensity1 / totalCell;
-				averageIntensity2[i] = totalIntensity2 / totalCell;
+				reader = null;
 			}
-			
-			// CLOSE IMAGES
-			cells.changes = false; 
-			cells.close();
-			overlapping.changes = false;
-			overlapping.close();
-			bloodVessels.changes = false; 
-			bloodVessels.close();
-			
-			// PRINT RESULTS (CELL MAX WIDTHS AND AREA OVERLAPPING WITH BLOOD VESSELS)
-			ResultsTable results = new ResultsTable();
-			for(int i = 0; i < numCells; i++) {
-				results.addValue("Maximum Cell Width ("+units+")", cellMaxWidths[i]);
-				results.addValue("Cell-Vessel Overlap ("+units+"^2)", cellVesselOverlap[i]);
-				results.addValue("Total Cell Area ("+units+"^2)", cellAreas[i]);
-				results.addValue("% of Cell Area Overlapping with Vessel", percentageOverlap[i]);
-				results.addValue("Average Intensity in "+cellChannel1Name+" (per pixel)", averageIntensity1[i]);
-				results.addValue("Average Intensity in "+cellChannel2Name+" (per pixel)", averageIntensity2[i]);
-				results.addRow();
+		}
+
+		// AFTER A FAILED COMPUTE; A SUCCESSFUL ONE HANDS THE PLANES ON TO ITS RESULT
+		void close() {
+			closeReader();
+			if (projections == null) {
+				return;
+			}
+			for (ImagePlus imp : new ImagePlus[]{ projections.bloodVessels, projections.cells1, projections.cells2, projections.cells }) {
+				if (imp != null) {
+					imp.close();
+				}
 			}
-			results.showRowNumbers(true);
-			results.save(outputPath + imageName + "_results.csv");
 		}
 	}
-}
 
+
+	// WHAT THE COMPUTE STAGE HANDS TO THE WRITE STAGE
+	static class ImageResult {
+		File file;
+		String imageName;
+		CellLabels cells;
+		ImagePlus mergedOverlap;
+		ImagePlus mergedCopy;
+		ResultsTable results;
+		// THE SAME ROWS, TYPED, FOR THE AGGREGATED RESULTS STORE
+		ResultsStore.Block block;
+		ImagePlus[] sources;
+	}
+
+
+	// PROJECTED CHANNELS OF ONE IMAGE
+	static class Projections {
+		Calibration calibration;
+		ImagePlus bloodVessels;
+		ImagePlus cells1;
+		ImagePlus cells2;
+		ImagePlus cells;
+		// THE INPUT FILE AS DiskCache.source NAMES IT
+		String source;
+
+		// THE FOUR PLANES, WITH THE CALIBRATION IN THE ENTRY INFO
+		DiskCache.Entry toCacheEntry() {
+			DiskCache.Entry entry = DiskCache.entry(calibration.pixelWidth + "\t" + calibration.pixelHeight + "\t" + calibration.getUnit(),
+					bloodVessels.getProcessor(), cells1.getProcessor(), cells2.getProcessor(), cells.getProcessor());
+			entry.labels = new String[] { bloodVessels.getTitle(), cells1.getTitle(), cells2.getTitle(), cells.getTitle() };
+			return entry;
+		}
+
+		static Projections fromCacheEntry(DiskCache.Entry entry, String source) {
+			String[] info = entry.info.split("\t");
+			Projections projections = new Projections();
+			projections.source = source;
+			projections.calibration = new Calibration();
+			projections.calibration.pixelWidth = Double.parseDouble(info[0]);
+			projections.calibration.pixelHeight = Double.parseDouble(info[1]);
+			projections.calibration.setUnit(info[2]);
+			projections.bloodVessels = image(entry, 0, projections.calibration);
+			projections.cells1 = image(entry, 1, projections.calibration);
+			projections.cells2 = image(entry, 2, projections.calibration);
+			projections.cells = image(entry, 3, projections.calibration);
+			return projections;
+		}
+
+		private static ImagePlus image(DiskCache.Entry entry, int plane, Calibration calibration) {
+			ImageProcessor ip = entry.processor(plane);
+			ip.resetMinAndMax();
+			ImagePlus imp = new ImagePlus(entry.labels[plane], ip);
+			imp.setCalibration(calibration);
+			return imp;
+		}
+	}
+
+
+	// FOLDS ONE PLANE AT A TIME INTO RUNNING PROJECTIONS, SO ONLY A FEW 2D PLANES ARE EVER IN MEMORY
+	static class StackProjector {
+
+		interface PlaneSource {
+			// CHANNEL AND SLICE ARE 1-BASED, AS IN THE HYPERSTACK
+			ImageProcessor plane(int channel, int slice) throws IOException, FormatException;
+		}
+
+		// SUM PROJECTION OF THE VESSEL CHANNEL AND MAX PROJECTIONS OF BOTH CELL CHANNELS FROM MIN SLICE UP
+		static Projections project(PlaneSource source, int nSlices, int width, int height, Calibration calibration, AnalysisParameters params) throws IOException, FormatException {
+			FusedProjection projection = null;
+			for (int z = Math.max(1, params.minSlice); z <= nSlices; z++) {
+				// READ EACH CHANNEL ONCE EVEN IF IT IS USED TWICE
+				ImageProcessor vesselPlane = source.plane(params.bloodVesselChannel, z);
+				ImageProcessor cellPlane1 = params.cellChannel1 == params.bloodVesselChannel ? vesselPlane : source.plane(params.cellChannel1, z);
+				ImageProcessor cellPlane2 = params.cellChannel2 == params.bloodVesselChannel ? vesselPlane
+						: params.cellChannel2 == params.cellChannel1 ? cellPlane1 : source.plane(params.cellChannel2, z);
+				if (projection == null) {
+					projection = new FusedProjection(width, height);
+				}
+				projection.add(vesselPlane, cellPlane1, cellPlane2);
+			}
+			if (projection == null) {
+				throw new FormatException("No slices at or above slice " + params.minSlice);
+			}
+			return projection.result(calibration);
+		}
+	}
+
+
+	// SUM OF THE VESSEL CHANNEL AND MAX OF BOTH CELL CHANNELS, ACCUMULATED IN FLOAT LIKE ZProjector,
+	// IN ONE LOOP OVER EACH SLICE'S THREE PLANES. THE LOOPS ARE BRANCH-FREE COUNTED LOOPS OVER
+	// PRIMITIVE ARRAYS, WHICH THE JIT TURNS INTO SIMD CODE.
+	static class FusedProjection {
+		private final int width;
+		private final int height;
+		private final float[] vesselSum;
+		private final float[] cellMax1;
+		private final float[] cellMax2;
+		private int bitDepth1;
+		private int bitDepth2;
+		private boolean empty = true;
+
+		FusedProjection(int width, int height) {
+			this.width = width;
+			this.height = height;
+			this.vesselSum = new float[width * height];
+			this.cellMax1 = new float[width * height];
+			this.cellMax2 = new float[width * height];
+		}
+
+		void add(ImageProcessor vesselPlane, ImageProcessor cellPlane1, ImageProcessor cellPlane2) {
+			Object pv = vesselPlane.getPixels();
+			Object p1 = cellPlane1.getPixels();
+			Object p2 = cellPlane2.getPixels();
+			float[] sum = vesselSum;
+			float[] max1 = cellMax1;
+			float[] max2 = cellMax2;
+			int n = sum.length;
+			if (empty) {
+				// THE FIRST SLICE STARTS THE MAX PROJECTIONS, SO LATER ONES NEED NO "EMPTY" TEST PER PIXEL
+				bitDepth1 = cellPlane1.getBitDepth();
+				bitDepth2 = cellPlane2.getBitDepth();
+				addSum(sum, pv);
+				copy(max1, p1);
+				copy(max2, p2);
+				empty = false;
+			} else if (pv instanceof short[] && p1 instanceof short[] && p2 instanceof short[]) {
+				short[] v = (short[])pv;
+				short[] c1 = (short[])p1;
+				short[] c2 = (short[])p2;
+				for (int i = 0; i < n; i++) {
+					sum[i] += v[i] & 0xffff;
+					max1[i] = Math.max(max1[i], c1[i] & 0xffff);
+					max2[i] = Math.max(max2[i], c2[i] & 0xffff);
+				}
+			} else if (pv instanceof byte[] && p1 instanceof byte[] && p2 instanceof byte[]) {
+				byte[] v = (byte[])pv;
+				byte[] c1 = (byte[])p1;
+				byte[] c2 = (byte[])p2;
+				for (int i = 0; i < n; i++) {
+					sum[i] += v[i] & 0xff;
+					max1[i] = Math.max(max1[i], c1[i] & 0xff);
+					max2[i] = Math.max(max2[i], c2[i] & 0xff);
+				}
+			} else {
+				addSum(sum, pv);
+				addMax(max1, p1);
+				addMax(max2, p2);
+			}
+		}
+
+		private static void addSum(float[] sum, Object pixels) {
+			int n = sum.length;
+			if (pixels instanceof byte[]) {
+				byte[] p = (byte[])pixels;
+				for (int i = 0; i < n; i++) sum[i] += p[i] & 0xff;
+			} else if (pixels instanceof short[]) {
+				short[] p = (short[])pixels;
+				for (int i = 0; i < n; i++) sum[i] += p[i] & 0xffff;
+			} else {
+				float[] p = floats(pixels);
+				for (int i = 0; i < n; i++) sum[i] += p[i];
+			}
+		}
+
+		private static void addMax(float[] max, Object pixels) {
+			int n = max.length;
+			if (pixels instanceof byte[]) {
+				byte[] p = (byte[])pixels;
+				for (int i = 0; i < n; i++) max[i] = Math.max(max[i], p[i] & 0xff);
+			} else if (pixels instanceof short[]) {
+				short[] p = (short[])pixels;
+				for (int i = 0; i < n; i++) max[i] = Math.max(max[i], p[i] & 0xffff);
+			} else {
+				float[] p = floats(pixels);
+				// NOT Math.max, WHICH WOULD LET A NaN PIXEL WIN
+				for (int i = 0; i < n; i++) if (p[i] > max[i]) max[i] = p[i];
+			}
+		}
+
+		private static void copy(float[] values, Object pixels) {
+			int n = values.length;
+			if (pixels instanceof byte[]) {
+				byte[] p = (byte[])pixels;
+				for (int i = 0; i < n; i++) values[i] = p[i] & 0xff;
+			} else if (pixels instanceof short[]) {
+				short[] p = (short[])pixels;
+				for (int i = 0; i < n; i++) values[i] = p[i] & 0xffff;
+			} else {
+				System.arraycopy(floats(pixels), 0, values, 0, n);
+			}
+		}
+
+		private static float[] floats(Object pixels) {
+			if (!(pixels instanceof float[])) {
+				throw new IllegalArgumentException("Unsupported pixel type: " + pixels.getClass().getSimpleName());
+			}
+			return (float[])pixels;
+		}
+
+		// SUM STAYS FLOAT, MAX PROJECTIONS KEEP THE SOURCE BIT DEPTH
+		Projections result(Calibration calibration) {
+			Projections projections = new Projections();
+			projections.calibration = calibration;
+			projections.bloodVessels = image("SUM_Blood Vessels", new FloatProcessor(width, height, vesselSum), calibration);
+			projections.cells1 = image("MAX_Cells 1", processor(cellMax1, bitDepth1), calibration);
+			projections.cells2 = image("MAX_Cells 2", processor(cellMax2, bitDepth2), calibration);
+
+			// MERGED CELL CHANNELS FOR THRESHOLDING AND DETECTION, AS "Max create" WOULD GIVE
+			int n = cellMax1.length;
+			float[] merged = new float[n];
+			for (int i = 0; i < n; i++) {
+				merged[i] = cellMax1[i] > cellMax2[i] ? cellMax1[i] : cellMax2[i];
+			}
+			projections.cells = image("Merged Cells", processor(merged, bitDepth1 == bitDepth2 ? bitDepth1 : 32), calibration);
+			return projections;
+		}
+
+		private ImageProcessor processor(float[] values, int bitDepth) {
+			if (bitDepth == 16) {
+				short[] p = new short[values.length];
+				for (int i = 0; i < p.length; i++) p[i] = (short)values[i];
+				return new ShortProcessor(width, height, p, null);
+			} else if (bitDepth == 8) {
+				byte[] p = new byte[values.length];
+				for (int i = 0; i < p.length; i++) p[i] = (byte)values[i];
+				return new ByteProcessor(width, height, p);
+			}
+			return new FloatProcessor(width, height, values);
+		}
+
+		private static ImagePlus image(String title, ImageProcessor ip, Calibration calibration) {
+			ip.resetMinAndMax();
+			ImagePlus imp = new ImagePlus(title, ip);
+			imp.setCalibration(calibration);
+			return imp;
+		}
+	}
+
+
+	// THE PER-IMAGE ANALYSIS: NO DIALOGS, NO WINDOWS, NO SHARED ROI MANAGER
+	static class ImagePipeline {
+		final AnalysisParameters params;
+		final ClassifierCache classifiers;
+		final OutputWriter outputs;
+		// NULL WHEN PROCESSED IMAGES ARE NOT RECORDED
+		RunManifest manifest;
+		StageProfiler profiler = new StageProfiler(false);
+		// NULL WHEN NOTHING IS CACHED ON DISK
+		DiskCache cache;
+		// THREADS GIVEN TO EACH MULTITHREADED STAGE, 0 MEANS ALL AVAILABLE
+		int threads = 0;
+
+		ImagePipeline(AnalysisParameters params, ClassifierCache classifiers, OutputWriter outputs) {
+			this.params = params;
+			this.classifiers = classifiers;
+			this.outputs = outputs;
+		}
+
+		// OPEN, SEGMENT, MEASURE AND SAVE ONE IMAGE
+		void process(File img) throws Exception {
+			write(compute(read(img)));
+		}
+
+		// READ STAGE: PROJECTIONS AND SCALE, STRAIGHT FROM DISK
+		LoadedImage read(File img) throws IOException, FormatException {
+			ImageProcessorReader reader = openReader(img);
+			try {
+				return read(img, reader);
+			} finally {
+				reader.close();
+			}
+		}
+
+		// THE SAME WITH A READER FROM openReader, SO THE METADATA IS PARSED ONCE PER IMAGE; THE CALLER CLOSES IT
+		LoadedImage read(File img, ImageProcessorReader reader) throws IOException, FormatException {
+			LoadedImage image = new LoadedImage();
+			image.file = img;
+			image.imageName = img.getName().split(params.fileExtension)[0];
+
+			// READ ONLY THE ANALYZED CHANNELS AND SLICES, PROJECTING AS THEY ARE READ
+			StageProfiler.Stage stage = profiler.start(image.imageName, "read and project");
+			try {
+				String source = DiskCache.source(img);
+				String key = DiskCache.key("projections", source, params.bloodVesselChannel, params.cellChannel1, params.cellChannel2, params.minSlice);
+				DiskCache.Entry cached = cache != null ? cache.get(key) : null;
+				if (cached != null) {
+					image.projections = Projections.fromCacheEntry(cached, source);
+				} else {
+					image.projections = readProjections(img, reader);
+					image.projections.source = source;
+					if (cache != null) {
+						cache.put(key, image.projections.toCacheEntry());
+					}
+				}
+			} finally {
+				stage.stop();
+			}
+
+			// SET SCALE
+			Calibration c = image.projections.calibration;
+			image.pixelWidth = params.pixelWidth;
+			image.pixelHeight = params.pixelHeight;
+			image.units = params.units;
+			if (c.scaled()) {
+				image.pixelWidth = c.pixelWidth;
+				image.pixelHeight = c.pixelHeight;
+				image.units = c.getUnit();
+			}
+			return image;
+		}
+
+		// COMPUTE STAGE: SEGMENTATION AND MEASUREMENTS, NOTHING WRITTEN BUT THE ROIS
+		ImageResult compute(LoadedImage image) throws IOException {
+			Projections projections = image.projections;
+			ImagePlus cells;
+			if (params.classifyCells) {
+				cells = classifyCells(image.imageName, projections.cells);
+			} else {
+				StageProfiler.Stage stage = profiler.start(image.imageName, "bernsen threshold");
+				try {
+					cells = bernsen(projections.cells).apply(params.threshold, params.radius);
+				} finally {
+					stage.stop();
+				}
+			}
+			ImageResult result = analyze(image.imageName, projections, cells, image.pixelWidth, image.pixelHeight, image.units);
+			result.file = image.file;
+			if (params.volumeSlab > 0) {
+				if (image.reader != null) {
+					measureVolume(result, projections, image.pixelWidth, image.pixelHeight, image.reader);
+				} else {
+					measureVolume(result, projections, image.pixelWidth, image.pixelHeight);
+				}
+			}
+			image.closeReader();
+			return result;
+		}
+
+		// WRITE STAGE: MERGED TIFFS AND RESULTS TABLE
+		void write(ImageResult result) throws IOException {
+			String outputPath = params.outputPath;
+			try {
+				List<String> written = new ArrayList<String>();
+				// A ZIP CANNOT BE EMPTY, SO AN IMAGE WITHOUT CELLS HAS NO ROI FILE
+				if (result.cells.count > 0) {
+					StageProfiler.Stage stage = profiler.start(result.imageName, "save rois");
+					try {
+						outputs.saveRois(result.cells.rois(), outputPath + result.imageName + "_rois.zip");
+					} finally {
+						stage.stop();
+					}
+					written.add(result.imageName + "_rois.zip");
+				}
+				if (result.mergedOverlap != null) {
+					StageProfiler.Stage stage = profiler.start(result.imageName, "save tiffs");
+					try {
+						outputs.saveTiff(result.mergedOverlap, outputPath + result.imageName + "_overlap.tif");
+						outputs.saveTiff(result.mergedCopy, outputPath + result.imageName + "_copy.tif");
+					} finally {
+						stage.stop();
+					}
+					written.add(result.imageName + "_overlap.tif");
+					written.add(result.imageName + "_copy.tif");
+				}
+				StageProfiler.Stage stage = profiler.start(result.imageName, "save results");
+				try {
+					if (outputs.writeImageResults) {
+						outputs.saveResults(result.results, outputPath + result.imageName + "_results.csv");
+						written.add(result.imageName + "_results.csv");
+					}
+					if (outputs.results != null && result.block != null) {
+						outputs.results.append(result.block);
+						written.add(ResultsStore.FILE_NAME);
+					}
+				} finally {
+					stage.stop();
+				}
+				profiler.writeImage(result.imageName, outputPath + result.imageName + "_timing.csv", outputs);
+				if (manifest != null && result.file != null) {
+					manifest.record(result.file, params.fingerprint(), written);
+				}
+			} finally {
+				// CLOSE IMAGES
+				for (ImagePlus imp : result.sources) {
+					imp.changes = false;
+					imp.close();
+				}
+			}
+		}
+
+		// FILES A COMPLETE RUN WRITES FOR AN IMAGE WITH THE CURRENT OUTPUT OPTIONS
+		List<String> outputNames(File img) {
+			String imageName = img.getName().split(params.fileExtension)[0];
+			List<String> names = new ArrayList<String>();
+			if (outputs.writePreviews) {
+				names.add(imageName + "_overlap.tif");
+				names.add(imageName + "_copy.tif");
+			}
+			if (outputs.writeImageResults) {
+				names.add(imageName + "_results.csv");
+			}
+			if (outputs.results != null) {
+				names.add(ResultsStore.FILE_NAME);
+			}
+			return names;
+		}
+
+		// A READER ON THE FILE WITH ITS OME METADATA, NOT YET READ PAST THE HEADER
+		static ImageProcessorReader openReader(File img) throws IOException, FormatException {
+			ImageProcessorReader reader = new ImageProcessorReader(new ChannelSeparator(LociPrefs.makeImageReader()));
+			try {
+				reader.setMetadataStore(MetadataTools.createOMEXMLMetadata());
+				reader.setId(img.getAbsolutePath());
+				return reader;
+			} catch (IOException | FormatException | RuntimeException e) {
+				reader.close();
+				throw e;
+			}
+		}
+
+		// STREAM THE VESSEL AND CELL CHANNELS FROM DISK WITHOUT OPENING THE HYPERSTACK
+		Projections readProjections(File img, final ImageProcessorReader reader) throws IOException, FormatException {
+			IMetadata meta = (IMetadata)reader.getMetadataStore();
+			for (int channel : new int[]{ params.bloodVesselChannel, params.cellChannel1, params.cellChannel2 }) {
+				if (channel < 1 || channel > reader.getSizeC()) {
+					throw new FormatException(img.getName() + " has no channel " + channel);
+				}
+			}
+
+			// SAME CALIBRATION AS THE BIO-FORMATS IMPORTER
+			Calibration calibration = new Calibration();
+			Length physicalSizeX = meta.getPixelsPhysicalSizeX(0);
+			Length physicalSizeY = meta.getPixelsPhysicalSizeY(0);
+			double width = lengthIn(physicalSizeX, "micron");
+			double height = lengthIn(physicalSizeY, "micron");
+			if (!Double.isNaN(width)) {
+				calibration.pixelWidth = width;
+				calibration.setUnit("micron");
+			}
+			if (!Double.isNaN(height)) {
+				calibration.pixelHeight = height;
+				calibration.setUnit("micron");
+			}
+
+			return StackProjector.project(new StackProjector.PlaneSource() {
+				@Override
+				public ImageProcessor plane(int channel, int slice) throws IOException, FormatException {
+					return reader.openProcessors(reader.getIndex(slice-1, channel-1, 0))[0];
+				}
+			}, reader.getSizeZ(), reader.getSizeX(), reader.getSizeY(), calibration, params);
+		}
+
+		// PROJECT ALL SLICES ABOVE MIN SLICE OF AN IMAGE THAT IS ALREADY OPEN
+		Projections project(String imageName, final ImagePlus image) {
+			StageProfiler.Stage stage = profiler.start(imageName, "project");
+			try {
+				return StackProjector.project(new StackProjector.PlaneSource() {
+					@Override
+					public ImageProcessor plane(int channel, int slice) {
+						return image.getStack().getProcessor(image.getStackIndex(channel, slice, 1));
+					}
+				}, image.getNSlices(), image.getWidth(), image.getHeight(), image.getCalibration(), params);
+			} catch (Exception e) {
+				// AN OPEN STACK CANNOT FAIL TO DELIVER A PLANE
+				throw new IllegalStateException(e);
+			} finally {
+				stage.stop();
+			}
+		}
+
+		// BERNSEN LOCAL THRESHOLD AND WATERSHED OF THE MERGED CELL IMAGE
+		BernsenThreshold bernsen(ImagePlus mergedCells) {
+			return new BernsenThreshold(mergedCells, threads > 0 ? threads : Prefs.getThreads());
+		}
+
+		// APPLY CLASSIFIER TO CELL IMAGE
+		ImagePlus classifyCells(String imageName, ImagePlus mergedCells) throws IOException {
+			ImagePlus cells = mergedCells.duplicate();
+			StageProfiler.Stage stage = profiler.start(imageName, "classify cells");
+			try {
+				ImagePlus result = classify(params.cellClassifierPath, imageName, cells);
+				// CLASS 1 (CELLS) BECOMES THE FOREGROUND OF A BINARY MASK, AS FOR THE VESSELS
+				cells.setProcessor(BitMask.ofClass(result.getProcessor(), 0).toByteProcessor());
+			} finally {
+				stage.stop();
+			}
+			return cells;
+		}
+
+		// FULL RESOLUTION, OR COARSE-TO-FINE WHEN SCREENING
+		private ImagePlus classify(String classifierPath, String imageName, ImagePlus image) throws IOException {
+			if (params.coarseFactor > 1) {
+				return classifiers.classifyCoarse(classifierPath, imageName, image, threads, params.coarseFactor, params.refineConfidence);
+			}
+			return classifiers.classify(classifierPath, image, threads);
+		}
+
+		// CACHE KEYS SHARED WITH CLASSIFIER TRAINING, WHICH BUILDS THE SAME IMAGES FROM THE SAME INPUTS
+		static String preprocessedVesselsKey(String source, int channel, int minSlice) {
+			return DiskCache.key("preprocessed vessels", source, channel, minSlice,
+					VesselPreprocessor.BLOCK_RADIUS, VesselPreprocessor.BINS, VesselPreprocessor.SLOPE);
+		}
+
+		static String mergedCellsKey(String source, int channel1, int channel2, int minSlice) {
+			return DiskCache.key("merged cells", source, channel1, channel2, minSlice);
+		}
+
+		// VESSEL PREPROCESSING (IN PLACE) AND CLASSIFICATION; CLASS 1 IS THE RETURNED MASK
+		BitMask segmentVessels(String imageName, ImagePlus bloodVessels, String source) throws IOException {
+			// PREPROCESSING STEPS
+			// IJ.run(bloodVessels, "Subtract Background...", "rolling="+ Math.max(bloodVessels.getWidth(), bloodVessels.getHeight()));
+			// CLAHE AND REMOVE OUTLIERS
+			StageProfiler.Stage stage = profiler.start(imageName, "preprocess vessels");
+			try {
+				String key = cache != null && source != null ? preprocessedVesselsKey(source, params.bloodVesselChannel, params.minSlice) : null;
+				DiskCache.Entry cached = key != null ? cache.get(key) : null;
+				if (cached != null) {
+					ImageProcessor ip = cached.processor(0);
+					ip.resetMinAndMax();
+					bloodVessels.setProcessor(ip);
+				} else {
+					VesselPreprocessor.apply(bloodVessels, threads > 0 ? threads : Prefs.getThreads());
+					if (key != null) {
+						cache.put(key, DiskCache.entry("", bloodVessels.getProcessor()));
+					}
+				}
+			} finally {
+				stage.stop();
+			}
+
+			// APPLY CLASSIFIER TO BLOOD VESSEL IMAGE
+			stage = profiler.start(imageName, "classify vessels");
+			try {
+				ImagePlus result = classify(params.vesselClassifierPath, imageName, bloodVessels);
+				return BitMask.ofClass(result.getProcessor(), 0);
+			} finally {
+				stage.stop();
+			}
+		}
+
+		// EVERYTHING AFTER CELL SEGMENTATION: VESSELS, OVERLAP AND MEASUREMENTS
+		ImageResult analyze(String imageName, Projections projections, ImagePlus cells, double pixelWidth, double pixelHeight, String units) throws IOException {
+			ImagePlus bloodVessels = projections.bloodVessels;
+			ImagePlus cells1 = projections.cells1;
+			ImagePlus cells2 = projections.cells2;
+
+			// FIND CELLS (THE ROIS ARE ONLY TRACED WHEN THEY ARE SAVED)
+			StageProfiler.Stage stage = profiler.start(imageName, "label cells");
+			CellLabels cellLabels;
+			try {
+				cellLabels = CellLabels.label(cells.getProcessor(), (int)Math.ceil(params.minCellSize), true, threads > 0 ? threads : Prefs.getThreads());
+			} finally {
+				stage.stop();
+			}
+			int numCells = cellLabels.count;
+
+			// CALCULATE CELL MAX WIDTHS
+			double cellMaxWidths[] = new double[numCells];
+			for(int i = 0; i < numCells; i=i+1) {
+				cellMaxWidths[i] = cellLabels.feret[i] * pixelWidth;
+			}
+
+
+			  ///////////////////////////////
+			 // BLOOD VESSEL SEGMENTATION //
+			///////////////////////////////
+
+			ImagePlus bloodVesselCopy = outputs.writePreviews ? bloodVessels.duplicate() : null;
+			BitMask vesselMask = segmentVessels(imageName, bloodVessels, projections.source);
+
+			// COMBINE RESULTS AND CALCULATE AREA OF EACH CELL OVERLAPPING WITH BLOOD VESSEL
+			stage = profiler.start(imageName, "overlap and measure");
+			BitMask overlap = BitMask.ofForeground(cells.getProcessor()).and(vesselMask);
+
+			// ONE RASTER SCAN OVER THE CELL LABEL MAP GIVES AREA, OVERLAP AND INTENSITY SUMS OF EVERY CELL
+			CellMeasurements measurements = CellMeasurements.measure(cellLabels.labels, numCells,
+					overlap, cells1.getProcessor(), cells2.getProcessor());
+			stage.stop();
+
+			ImageResult imageResult = new ImageResult();
+			imageResult.imageName = imageName;
+			imageResult.cells = cellLabels;
+			// CLOSED ONCE THE MERGED IMAGES ARE SAVED
+			imageResult.sources = new ImagePlus[]{ cells, bloodVessels };
+			if (outputs.writePreviews) {
+				stage = profiler.start(imageName, "merge previews");
+				// BYTE MASKS ARE ONLY NEEDED FOR THE SAVED PREVIEWS
+				bloodVessels.setProcessor(vesselMask.toByteProcessor());
+				ImagePlus overlapping = new ImagePlus("Overlap", overlap.toByteProcessor());
+				overlapping.setCalibration(cells.getCalibration());
+				imageResult.sources = new ImagePlus[]{ cells, overlapping, bloodVessels };
+
+				// APPLY COLOR TO CHANNELS FOR VISUALIZATION
+				IJ.run(bloodVessels, "Red", "");
+				IJ.run(cells, "Green", "");
+				IJ.run(overlapping, "Blue", "");
+
+				// MERGE AS RGB IMAGE (SAVED BY THE WRITE STAGE)
+				ImagePlus[] imageArray = new ImagePlus[]{ bloodVessels, cells, overlapping };
+				imageResult.mergedOverlap = RGBStackMerge.mergeChannels(imageArray, false);
+
+				// ALSO MERGE RAW IMAGES FOR COMPARISON
+				ImagePlus[] imageCopy = new ImagePlus[]{ bloodVesselCopy, cells1, cells2 };
+				imageResult.mergedCopy = RGBStackMerge.mergeChannels(imageCopy, false);
+				stage.stop();
+			}
+
+			// CALCULATE CELL-VESSEL OVERLAP AND META DATA
+			double cellVesselOverlap[] = new double[numCells];
+			double cellAreas[] = new double[numCells];
+			double percentageOverlap[] = new double[numCells];
+			double averageIntensity1[] = new double[numCells];
+			double averageIntensity2[] = new double[numCells];
+			for(int i = 0; i < numCells; ++i) {
+				double currCellVesselOverlap = measurements.overlap[i];
+				double totalCell = measurements.area[i];
+				double totalIntensity1 = measurements.intensity1[i];
+				double totalIntensity2 = measurements.intensity2[i];
+				cellVesselOverlap[i] = (double)currCellVesselOverlap * pixelWidth * pixelHeight;
+				cellAreas[i] = (double)totalCell * pixelWidth * pixelHeight;
+				percentageOverlap[i] = (cellVesselOverlap[i] / cellAreas[i]) * 100;
+				averageIntensity1[i] = totalIntensity1 / totalCell;
+				averageIntensity2[i] = totalIntensity2 / totalCell;
+			}
+			
+			// PRINT RESULTS (CELL MAX WIDTHS AND AREA OVERLAPPING WITH BLOOD VESSELS)
+			ResultsTable results = new ResultsTable();
+			for(int i = 0; i < numCells; i++) {
+				results.addValue("Maximum Cell Width ("+units+")", cellMaxWidths[i]);
+				results.addValue("Cell-Vessel Overlap ("+units+"^2)", cellVesselOverlap[i]);
+				results.addValue("Total Cell Area ("+units+"^2)", cellAreas[i]);
+				results.addValue("% of Cell Area Overlapping with Vessel", percentageOverlap[i]);
+				results.addValue("Average Intensity in "+params.cellChannel1Name+" (per pixel)", averageIntensity1[i]);
+				results.addValue("Average Intensity in "+params.cellChannel2Name+" (per pixel)", averageIntensity2[i]);
+				results.addRow();
+			}
+			results.showRowNumbers(true);
+			imageResult.results = results;
+			imageResult.block = ResultsStore.block(imageName, units, params.cellChannel1Name, params.cellChannel2Name,
+					cellMaxWidths, cellAreas, cellVesselOverlap, percentageOverlap, averageIntensity1, averageIntensity2);
+			return imageResult;
+		}
+
+		// A BIO-FORMATS LENGTH IN AN IMAGEJ UNIT, NaN WHEN IT IS MISSING OR DOES NOT CONVERT
+		static double lengthIn(Length length, String unit) {
+			if (length == null || unit == null) {
+				return Double.NaN;
+			}
+			Number value;
+			if (unit.equals("micron") || unit.equals("microns") || unit.equals("um") || unit.equals("\u00B5m")) {
+				value = length.value(UNITS.MICROMETER);
+			} else if (unit.equals("nm")) {
+				value = length.value(UNITS.NANOMETER);
+			} else if (unit.equals("mm")) {
+				value = length.value(UNITS.MILLIMETER);
+			} else if (unit.equals("cm")) {
+				value = length.value(UNITS.CENTIMETER);
+			} else if (unit.equals("m")) {
+				value = length.value(UNITS.METER);
+			} else {
+				return Double.NaN;
+			}
+			return value == null ? Double.NaN : value.doubleValue();
+		}
+
+		// SECOND PASS OVER THE Z RANGE OF THE FILE, params.volumeSlab SLICES AT A TIME, FOR THE VOXEL
+		// OVERLAP OF EVERY CELL WITH THE VESSELS. ADDS THE VOLUMETRIC COLUMNS TO THE 2D ONES.
+		void measureVolume(ImageResult result, Projections projections, double pixelWidth, double pixelHeight) throws IOException {
+			ImageProcessorReader reader;
+			try {
+				reader = openReader(result.file);
+			} catch (FormatException e) {
+				throw new IOException("Could not read " + result.file.getName() + ": " + e.getMessage(), e);
+			}
+			try {
+				measureVolume(result, projections, pixelWidth, pixelHeight, reader);
+			} finally {
+				reader.close();
+			}
+		}
+
+		// THE SAME WITH A READER FROM openReader, WHICH ONLY HAS PLANES LEFT TO READ; THE CALLER CLOSES IT
+		void measureVolume(ImageResult result, Projections projections, double pixelWidth, double pixelHeight,
+				ImageProcessorReader reader) throws IOException {
+			StageProfiler.Stage stage = profiler.start(result.imageName, "volume overlap");
+			IMetadata meta = (IMetadata)reader.getMetadataStore();
+			VolumeOverlap volume = new VolumeOverlap(result.cells, projections.cells1.getProcessor(), projections.cells2.getProcessor(), params.volumeSlab);
+			double pixelDepth = pixelWidth;
+			try {
+				// WITHOUT A Z STEP IN THE METADATA THAT CONVERTS TO THE IMAGE'S UNIT, VOXELS ARE TAKEN
+				// TO BE AS DEEP AS THEY ARE WIDE
+				double depth = lengthIn(meta.getPixelsPhysicalSizeZ(0), result.block.units);
+				if (!Double.isNaN(depth) && projections.calibration.scaled()) {
+					pixelDepth = depth;
+				} else {
+					IJ.log(result.imageName + " has no usable Z step; taking voxels to be " + pixelWidth + " " + result.block.units + " deep");
+				}
+				int nSlices = reader.getSizeZ();
+				for (int z = Math.max(1, params.minSlice); z <= nSlices; z++) {
+					// READ EACH CHANNEL ONCE EVEN IF IT IS USED TWICE
+					ImageProcessor vesselPlane = plane(reader, params.bloodVesselChannel, z);
+					ImageProcessor cellPlane1 = params.cellChannel1 == params.bloodVesselChannel ? vesselPlane : plane(reader, params.cellChannel1, z);
+					ImageProcessor cellPlane2 = params.cellChannel2 == params.bloodVesselChannel ? vesselPlane
+							: params.cellChannel2 == params.cellChannel1 ? cellPlane1 : plane(reader, params.cellChannel2, z);
+					if (volume.add(vesselPlane, cellPlane1, cellPlane2) || z == nSlices) {
+						volume.closeSlab(slabVessels(result.imageName, volume.slabSum(), projections.calibration));
+					}
+				}
+			} catch (FormatException e) {
+				throw new IOException("Could not read " + result.file.getName() + ": " + e.getMessage(), e);
+			} finally {
+				stage.stop();
+			}
+
+			int numCells = result.cells.count;
+			double voxelVolume = pixelWidth * pixelHeight * pixelDepth;
+			double cellVolumes[] = new double[numCells];
+			double cellVesselVolumes[] = new double[numCells];
+			double percentageVolume[] = new double[numCells];
+			for (int i = 0; i < numCells; i++) {
+				cellVolumes[i] = volume.voxels[i] * voxelVolume;
+				cellVesselVolumes[i] = volume.overlap[i] * voxelVolume;
+				percentageVolume[i] = (cellVesselVolumes[i] / cellVolumes[i]) * 100;
+			}
+			String units = result.block.units;
+			for (int i = 0; i < numCells; i++) {
+				result.results.setValue("Cell Volume (" + units + "^3)", i, cellVolumes[i]);
+				result.results.setValue("Cell-Vessel Overlap Volume (" + units + "^3)", i, cellVesselVolumes[i]);
+				result.results.setValue("% of Cell Volume Overlapping with Vessel", i, percentageVolume[i]);
+			}
+			double[][] columns = Arrays.copyOf(result.block.columns, result.block.columns.length + 3);
+			columns[columns.length - 3] = cellVolumes;
+			columns[columns.length - 2] = cellVesselVolumes;
+			columns[columns.length - 1] = percentageVolume;
+			result.block.columns = columns;
+		}
+
+		private static ImageProcessor plane(ImageProcessorReader reader, int channel, int slice) throws IOException, FormatException {
+			return reader.openProcessors(reader.getIndex(slice-1, channel-1, 0))[0];
+		}
+
+		// PREPROCESSED AND CLASSIFIED LIKE THE WHOLE-STACK SUM; CLAHE EVENS OUT THE SMALLER SUM OF A SLAB
+		private BitMask slabVessels(String imageName, FloatProcessor sum, Calibration calibration) throws IOException {
+			ImagePlus slab = new ImagePlus("SUM_Blood Vessels", sum);
+			slab.setCalibration(calibration);
+			VesselPreprocessor.apply(slab, threads > 0 ? threads : Prefs.getThreads());
+			return BitMask.ofClass(classify(params.vesselClassifierPath, imageName, slab).getProcessor(), 0);
+		}
+	}
+
+
+	// WRITES OUTPUT FILES UNDER A TEMPORARY NAME AND RENAMES THEM INTO PLACE, SO A FILE WITH
+	// THE FINAL NAME IS ALWAYS COMPLETE. PREVIEW TIFFS CAN BE LOSSLESSLY COMPRESSED.
+	static class OutputWriter {
+		static final String NONE = "None";
+		static final String DEFLATE = "Deflate";
+		static final String LZW = "LZW";
+		static final String[] COMPRESSIONS = { NONE, DEFLATE, LZW };
+
+		final String compression;
+		final boolean writePreviews;
+		boolean writeImageResults = true;
+		// NULL WHEN CELLS ARE NOT COLLECTED ACROSS IMAGES
+		ResultsStore results;
+
+		OutputWriter(String compression, boolean writePreviews) {
+			this.compression = compression;
+			this.writePreviews = writePreviews;
+		}
+
+		void saveTiff(ImagePlus imp, String path) throws IOException {
+			File target = new File(path);
+			File temp = temporaryFile(target, ".tif");
+			try {
+				if (NONE.equals(compression)) {
+					if (!new FileSaver(imp).saveAsTiff(temp.getPath())) {
+						throw new IOException("Could not save " + target.getName());
+					}
+				} else {
+					saveCompressedTiff(imp, temp);
+				}
+				moveIntoPlace(temp, target);
+			} finally {
+				temp.delete();
+			}
+		}
+
+		void saveResults(ResultsTable results, String path) throws IOException {
+			File target = new File(path);
+			File temp = temporaryFile(target, ".csv");
+			try {
+				if (!results.save(temp.getPath())) {
+					throw new IOException("Could not save " + target.getName());
+				}
+				moveIntoPlace(temp, target);
+			} finally {
+				temp.delete();
+			}
+		}
+
+		// SAME LAYOUT AS THE ROI MANAGER'S "Save": ONE <name>.roi ENTRY PER ROI
+		void saveRois(Roi[] rois, String path) throws IOException {
+			File target = new File(path);
+			File temp = temporaryFile(target, ".zip");
+			try {
+				ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+				try {
+					DataOutputStream out = new DataOutputStream(zip);
+					RoiEncoder encoder = new RoiEncoder(out);
+					for (Roi roi : rois) {
+						zip.putNextEntry(new ZipEntry(roi.getName() + ".roi"));
+						encoder.write(roi);
+						out.flush();
+					}
+				} finally {
+					zip.close();
+				}
+				moveIntoPlace(temp, target);
+			} finally {
+				temp.delete();
+			}
+		}
+
+		// HIDDEN, NEXT TO THE TARGET (SO THE RENAME STAYS ON ONE FILE SYSTEM), KEEPING THE EXTENSION SAVERS EXPECT
+		private static File temporaryFile(File target, String extension) {
+			return new File(target.getParentFile(), "." + target.getName() + "." + Thread.currentThread().getId() + ".tmp" + extension);
+		}
+
+		private static void moveIntoPlace(File temp, File target) throws IOException {
+			try {
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		// Bio-Formats TIFF WRITER; ImageJ'S OWN TIFF ENCODER CANNOT COMPRESS.
+		// KEEPS PIXELS, CHANNELS AND MICRON CALIBRATION, BUT NOT THE IMAGEJ LUTS.
+		private void saveCompressedTiff(ImagePlus imp, File file) throws IOException {
+			ImageStack stack = imp.getStack();
+			int bitDepth = imp.getBitDepth();
+			int pixelType = bitDepth == 8 || bitDepth == 24 ? FormatTools.UINT8 : bitDepth == 16 ? FormatTools.UINT16 : FormatTools.FLOAT;
+			int samples = bitDepth == 24 ? 3 : 1;
+			IMetadata meta = MetadataTools.createOMEXMLMetadata();
+			MetadataTools.populateMetadata(meta, 0, imp.getTitle(), false, "XYCZT", FormatTools.getPixelTypeString(pixelType),
+					imp.getWidth(), imp.getHeight(), imp.getNSlices(), imp.getNChannels() * samples, imp.getNFrames(), samples);
+			Calibration cal = imp.getCalibration();
+			if ("micron".equals(cal.getUnit())) {
+				meta.setPixelsPhysicalSizeX(new Length(cal.pixelWidth, UNITS.MICROMETER), 0);
+				meta.setPixelsPhysicalSizeY(new Length(cal.pixelHeight, UNITS.MICROMETER), 0);
+			}
+
+			TiffWriter writer = new TiffWriter();
+			try {
+				writer.setMetadataRetrieve(meta);
+				writer.setCompression(DEFLATE.equals(compression) ? TiffWriter.COMPRESSION_ZLIB : TiffWriter.COMPRESSION_LZW);
+				writer.setInterleaved(true);
+				writer.setWriteSequentially(true);
+				long bytes = (long)imp.getWidth() * imp.getHeight() * stack.getSize() * (bitDepth == 24 ? 3 : bitDepth / 8);
+				writer.setBigTiff(bytes > 0xF0000000L);
+				writer.setId(file.getPath());
+				for (int i = 1; i <= stack.getSize(); i++) {
+					writer.saveBytes(i - 1, planeBytes(stack.getPixels(i)));
+				}
+			} catch (FormatException e) {
+				throw new IOException("Could not write " + file.getName(), e);
+			} finally {
+				writer.close();
+			}
+		}
+
+		// BIG-ENDIAN, AS DECLARED TO populateMetadata; RGB IS INTERLEAVED
+		private static byte[] planeBytes(Object pixels) {
+			if (pixels instanceof byte[]) {
+				return (byte[])pixels;
+			} else if (pixels instanceof short[]) {
+				return DataTools.shortsToBytes((short[])pixels, false);
+			} else if (pixels instanceof float[]) {
+				return DataTools.floatsToBytes((float[])pixels, false);
+			}
+			int[] rgb = (int[])pixels;
+			byte[] bytes = new byte[rgb.length * 3];
+			for (int i = 0, j = 0; i < rgb.length; i++) {
+				bytes[j++] = (byte)(rgb[i] >> 16);
+				bytes[j++] = (byte)(rgb[i] >> 8);
+				bytes[j++] = (byte)rgb[i];
+			}
+			return bytes;
+		}
+	}
+
+
+	// TAB-SEPARATED RECORD IN THE OUTPUT FOLDER OF EVERY IMAGE THAT WAS COMPLETELY PROCESSED:
+	// INPUT NAME, SIZE, MODIFICATION TIME, CONTENT HASH (OR -), PARAMETER FINGERPRINT, OUTPUTS.
+	// LINES ARE ONLY APPENDED; A LATER LINE FOR THE SAME INPUT REPLACES AN EARLIER ONE.
+	static class RunManifest {
+		static final String FILE_NAME = "vesscoopj_manifest.tsv";
+		private static final String HEADER = "input\tsize\tmodified\tsha256\tparameters\toutputs";
+
+		private final File file;
+		private final File recordFile;
+		private final File outputFolder;
+		private final boolean hashInputs;
+		private final Map<String, String[]> entries = new HashMap<String, String[]>();
+
+		RunManifest(String outputPath, boolean hashInputs) throws IOException {
+			this(outputPath, hashInputs, FILE_NAME);
+		}
+
+		// READS THE MANIFEST BUT RECORDS TO recordName, AS A WORKER OF A SHARDED RUN DOES UNTIL ITS PART IS MERGED
+		RunManifest(String outputPath, boolean hashInputs, String recordName) throws IOException {
+			this.outputFolder = new File(outputPath);
+			this.file = new File(outputFolder, FILE_NAME);
+			this.recordFile = new File(outputFolder, recordName);
+			this.hashInputs = hashInputs;
+			if (file.exists()) {
+				BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+				try {
+					String line;
+					while ((line = in.readLine()) != null) {
+						String[] fields = line.split("\t", -1);
+						// SKIPS THE HEADER AND A LINE CUT SHORT BY A CRASH
+						if (fields.length == 6 && !line.equals(HEADER)) {
+							entries.put(fields[0], fields);
+						}
+					}
+				} finally {
+					in.close();
+				}
+			}
+		}
+
+		// SAME INPUT, SAME PARAMETERS, EVERY OUTPUT NEEDED NOW WAS WRITTEN, AND ALL THAT WAS WRITTEN IS STILL THERE
+		synchronized boolean isUpToDate(File input, String parameters, List<String> requiredOutputs) throws IOException {
+			String[] entry = entries.get(input.getName());
+			if (entry == null || !entry[1].equals(Long.toString(input.length())) || !entry[4].equals(parameters)) {
+				return false;
+			}
+			if (hashInputs ? !entry[3].equals(sha256(input)) : !entry[2].equals(Long.toString(input.lastModified()))) {
+				return false;
+			}
+			List<String> recorded = Arrays.asList(entry[5].split(","));
+			if (!recorded.containsAll(requiredOutputs)) {
+				return false;
+			}
+			for (String output : recorded) {
+				if (!new File(outputFolder, output).exists()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		synchronized void record(File input, String parameters, List<String> outputs) throws IOException {
+			StringBuilder joined = new StringBuilder();
+			for (String output : outputs) {
+				if (joined.length() > 0) {
+					joined.append(',');
+				}
+				joined.append(output);
+			}
+			String[] entry = { input.getName(), Long.toString(input.length()), Long.toString(input.lastModified()),
+					hashInputs ? sha256(input) : "-", parameters, joined.toString() };
+			boolean header = !recordFile.exists();
+			Writer out = new OutputStreamWriter(new FileOutputStream(recordFile, true), StandardCharsets.UTF_8);
+			try {
+				if (header) {
+					out.write(HEADER + "\n");
+				}
+				for (int i = 0; i < entry.length; i++) {
+					out.write(i == 0 ? entry[i] : "\t" + entry[i]);
+				}
+				out.write("\n");
+			} finally {
+				out.close();
+			}
+			entries.put(entry[0], entry);
+		}
+
+		// APPENDS THE ENTRIES OF EACH PART TO THE MANIFEST AND DELETES THE PART; A LATER ENTRY FOR AN INPUT WINS
+		static void merge(File outputFolder, List<File> parts) throws IOException {
+			File file = new File(outputFolder, FILE_NAME);
+			boolean header = !file.exists();
+			Writer out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+			try {
+				if (header) {
+					out.write(HEADER + "\n");
+				}
+				for (File part : parts) {
+					if (!part.isFile()) {
+						continue;
+					}
+					BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(part), StandardCharsets.UTF_8));
+					try {
+						String line;
+						while ((line = in.readLine()) != null) {
+							if (line.split("\t", -1).length == 6 && !line.equals(HEADER)) {
+								out.write(line + "\n");
+							}
+						}
+					} finally {
+						in.close();
+					}
+				}
+			} finally {
+				out.close();
+			}
+			for (File part : parts) {
+				part.delete();
+			}
+		}
+
+		static String sha256(File f) throws IOException {
+			MessageDigest digest = newDigest();
+			InputStream in = new FileInputStream(f);
+			try {
+				byte[] buffer = new byte[1 << 20];
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					digest.update(buffer, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+			return hex(digest.digest());
+		}
+
+		static String sha256(byte[] bytes) {
+			return hex(newDigest().digest(bytes));
+		}
+
+		private static MessageDigest newDigest() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				// EVERY JAVA PLATFORM IS REQUIRED TO PROVIDE SHA-256
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private static String hex(byte[] bytes) {
+			StringBuilder sb = new StringBuilder(bytes.length * 2);
+			for (byte b : bytes) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		}
+	}
+
+
+	// CONTENT-ADDRESSED STORE OF IMAGE PLANES (PROJECTIONS, PREPROCESSED VESSELS, WEKA FEATURES) SHARED BY
+	// BATCH RUNS AND CLASSIFIER TRAINING. AN ENTRY IS A SHORT HEADER FOLLOWED BY THE RAW PLANES; THE
+	// LEAST RECENTLY USED ENTRIES ARE DELETED WHEN THE FOLDER OUTGROWS ITS LIMIT.
+	// A CACHE THAT CANNOT BE READ OR WRITTEN ONLY COSTS THE RECOMPUTATION, NEVER THE IMAGE.
+	static class DiskCache {
+		static final String EXTENSION = ".vcache";
+		private static final int MAGIC = 0x56434a43;
+		private static final int VERSION = 1;
+
+		final File directory;
+		final long limitBytes;
+
+		DiskCache(File directory, long limitMB) {
+			this.directory = directory;
+			this.limitBytes = limitMB << 20;
+		}
+
+		// NULL WHEN CACHING IS OFF
+		static DiskCache of(BatchOptions options) {
+			return options.cache ? new DiskCache(new File(options.cacheDirectory), options.cacheLimitMB) : null;
+		}
+
+		static String defaultDirectory() {
+			return System.getProperty("user.home") + File.separator + ".vesscoopj_cache";
+		}
+
+		// THE DIALOG REMEMBERS THE CACHE, SO TRAINING AT THE START OF THE NEXT RUN CAN USE IT
+		static void loadPrefs(BatchOptions options) {
+			options.cache = Prefs.get("vesscoopj.cache", options.cache);
+			options.cacheDirectory = Prefs.get("vesscoopj.cacheDirectory", options.cacheDirectory);
+			options.cacheLimitMB = (long)Prefs.get("vesscoopj.cacheLimitMB", options.cacheLimitMB);
+		}
+
+		static void savePrefs(BatchOptions options) {
+			Prefs.set("vesscoopj.cache", options.cache);
+			Prefs.set("vesscoopj.cacheDirectory", options.cacheDirectory);
+			Prefs.set("vesscoopj.cacheLimitMB", options.cacheLimitMB);
+		}
+
+		// KEY OF AN ENTRY FROM EVERYTHING THAT PRODUCED IT
+		static String key(Object... parts) {
+			StringBuilder sb = new StringBuilder();
+			for (Object part : parts) {
+				sb.append(part).append('\n');
+			}
+			return RunManifest.sha256(sb.toString().getBytes(StandardCharsets.UTF_8));
+		}
+
+		// AN INPUT FILE AS IT APPEARS IN KEYS: PATH, SIZE AND MODIFICATION TIME
+		static String source(File file) {
+			return file.getAbsolutePath() + "@" + file.length() + "@" + file.lastModified();
+		}
+
+		// SHA-256 OF THE SIZE, TYPE AND PIXELS OF A PLANE
+		static String content(ImageProcessor ip) {
+			MessageDigest digest = RunManifest.newDigest();
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+			buffer.putInt(ip.getWidth()).putInt(ip.getHeight()).putInt(ip.getBitDepth());
+			Object pixels = ip.getPixels();
+			int n = ip.getWidth() * ip.getHeight();
+			for (int i = 0; i < n; ) {
+				if (pixels instanceof byte[]) {
+					int len = Math.min(n - i, buffer.remaining());
+					buffer.put((byte[])pixels, i, len);
+					i += len;
+				} else if (pixels instanceof short[]) {
+					int len = Math.min(n - i, buffer.remaining() / 2);
+					buffer.asShortBuffer().put((short[])pixels, i, len);
+					buffer.position(buffer.position() + 2 * len);
+					i += len;
+				} else {
+					int len = Math.min(n - i, buffer.remaining() / 4);
+					buffer.asFloatBuffer().put((float[])pixels, i, len);
+					buffer.position(buffer.position() + 4 * len);
+					i += len;
+				}
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+			return RunManifest.hex(digest.digest());
+		}
+
+		// PLANES OF ONE WIDTH AND HEIGHT, EACH A byte[], short[] OR float[]
+		static class Entry {
+			int width;
+			int height;
+			String info = "";
+			String[] labels;
+			Object[] planes;
+
+			ImageProcessor processor(int i) {
+				if (planes[i] instanceof byte[]) {
+					return new ByteProcessor(width, height, (byte[])planes[i]);
+				} else if (planes[i] instanceof short[]) {
+					return new ShortProcessor(width, height, (short[])planes[i], null);
+				}
+				return new FloatProcessor(width, height, (float[])planes[i]);
+			}
+		}
+
+		static Entry entry(String info, ImageProcessor... processors) {
+			Entry entry = new Entry();
+			entry.width = processors[0].getWidth();
+			entry.height = processors[0].getHeight();
+			entry.info = info;
+			entry.labels = new String[processors.length];
+			entry.planes = new Object[processors.length];
+			for (int i = 0; i < processors.length; i++) {
+				entry.labels[i] = "";
+				entry.planes[i] = processors[i].getPixels();
+			}
+			return entry;
+		}
+
+		private File file(String key) {
+			return new File(directory, key + EXTENSION);
+		}
+
+		// NULL ON A MISS; A HIT BECOMES THE MOST RECENTLY USED ENTRY
+		Entry get(String key) {
+			File file = file(key);
+			if (!file.isFile()) {
+				return null;
+			}
+			try {
+				Entry entry = read(file);
+				file.setLastModified(System.currentTimeMillis());
+				return entry;
+			} catch (IOException | RuntimeException e) {
+				// TRUNCATED, CORRUPT, FROM ANOTHER VERSION, OR EVICTED WHILE BEING READ
+				file.delete();
+				return null;
+			}
+		}
+
+		void put(String key, Entry entry) {
+			File target = file(key);
+			try {
+				if (!directory.isDirectory() && !directory.mkdirs()) {
+					throw new IOException("Could not create " + directory);
+				}
+				File temp = OutputWriter.temporaryFile(target, EXTENSION);
+				try {
+					write(temp, entry);
+					OutputWriter.moveIntoPlace(temp, target);
+				} finally {
+					temp.delete();
+				}
+				evict(target);
+			} catch (IOException e) {
+				IJ.log("Could not write to the cache in " + directory + ": " + e.getMessage());
+			}
+		}
+
+		// MAGIC, VERSION, HEADER LENGTH, THEN THE HEADER (SIZE, INFO, LABEL AND BIT DEPTH OF EACH PLANE)
+		// AND THE PLANES ONE AFTER ANOTHER IN PIXEL ORDER
+		private static void write(File file, Entry entry) throws IOException {
+			ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+			DataOutputStream header = new DataOutputStream(headerBytes);
+			header.writeInt(entry.width);
+			header.writeInt(entry.height);
+			header.writeUTF(entry.info);
+			header.writeInt(entry.planes.length);
+			for (int i = 0; i < entry.planes.length; i++) {
+				header.writeUTF(entry.labels[i] == null ? "" : entry.labels[i]);
+				header.writeByte(entry.planes[i] instanceof byte[] ? 8 : entry.planes[i] instanceof short[] ? 16 : 32);
+			}
+			header.flush();
+
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				FileChannel channel = out.getChannel();
+				ByteBuffer start = ByteBuffer.allocate(12 + headerBytes.size());
+				start.putInt(MAGIC).putInt(VERSION).putInt(headerBytes.size()).put(headerBytes.toByteArray());
+				start.flip();
+				writeFully(channel, start);
+				int n = entry.width * entry.height;
+				for (Object plane : entry.planes) {
+					ByteBuffer buffer;
+					if (plane instanceof byte[]) {
+						buffer = ByteBuffer.wrap((byte[])plane);
+					} else if (plane instanceof short[]) {
+						buffer = ByteBuffer.allocate(2 * n);
+						buffer.asShortBuffer().put((short[])plane);
+					} else {
+						buffer = ByteBuffer.allocate(4 * n);
+						buffer.asFloatBuffer().put((float[])plane);
+					}
+					writeFully(channel, buffer);
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+
+		// PLAIN READS, NOT A MEMORY MAP: THE PLANES ARE COPIED INTO ARRAYS ANYWAY, AND A LIVE MAPPING WOULD KEEP
+		// WINDOWS FROM DELETING THE FILE WHEN IT IS EVICTED. EVERY SIZE IS CHECKED AGAINST THE FILE, SO A CORRUPT
+		// OR FOREIGN FILE IS AN IOException AND NEVER AN ARRAY SIZED FROM GARBAGE
+		private static Entry read(File file) throws IOException {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				FileChannel channel = in.getChannel();
+				long size = channel.size();
+				ByteBuffer start = ByteBuffer.allocate(12);
+				readFully(channel, start);
+				start.flip();
+				int headerLength = start.getInt() == MAGIC && start.getInt() == VERSION ? start.getInt() : -1;
+				if (headerLength < 0 || headerLength > size - 12) {
+					throw new IOException("Not a cache entry: " + file);
+				}
+				ByteBuffer headerBytes = ByteBuffer.allocate(headerLength);
+				readFully(channel, headerBytes);
+				DataInputStream header = new DataInputStream(new ByteArrayInputStream(headerBytes.array()));
+				Entry entry = new Entry();
+				entry.width = header.readInt();
+				entry.height = header.readInt();
+				entry.info = header.readUTF();
+				int count = header.readInt();
+				long pixels = (long)entry.width * entry.height;
+				if (entry.width <= 0 || entry.height <= 0 || pixels > Integer.MAX_VALUE || count < 0 || count > headerLength) {
+					throw new IOException("Corrupt cache entry: " + file);
+				}
+				entry.labels = new String[count];
+				int[] bitDepths = new int[count];
+				long bytes = 12L + headerLength;
+				for (int i = 0; i < count; i++) {
+					entry.labels[i] = header.readUTF();
+					bitDepths[i] = header.readByte();
+					if (bitDepths[i] != 8 && bitDepths[i] != 16 && bitDepths[i] != 32) {
+						throw new IOException("Corrupt cache entry: " + file);
+					}
+					bytes += pixels * (bitDepths[i] / 8);
+				}
+				if (bytes != size) {
+					throw new IOException("Truncated cache entry: " + file);
+				}
+				int n = (int)pixels;
+				entry.planes = new Object[count];
+				ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+				for (int i = 0; i < count; i++) {
+					Object plane = bitDepths[i] == 8 ? new byte[n] : bitDepths[i] == 16 ? new short[n] : (Object)new float[n];
+					int bytesPerPixel = bitDepths[i] / 8;
+					for (int done = 0; done < n; ) {
+						int len = Math.min(n - done, buffer.capacity() / bytesPerPixel);
+						buffer.clear().limit(len * bytesPerPixel);
+						readFully(channel, buffer);
+						buffer.flip();
+						if (plane instanceof byte[]) {
+							buffer.get((byte[])plane, done, len);
+						} else if (plane instanceof short[]) {
+							buffer.asShortBuffer().get((short[])plane, done, len);
+						} else {
+							buffer.asFloatBuffer().get((float[])plane, done, len);
+						}
+						done += len;
+					}
+					entry.planes[i] = plane;
+				}
+				return entry;
+			} finally {
+				in.close();
+			}
+		}
+
+		private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					throw new EOFException();
+				}
+			}
+		}
+
+		// OLDEST ACCESS FIRST, NEVER THE ENTRY JUST WRITTEN
+		private synchronized void evict(File keep) {
+			File[] files = directory.listFiles();
+			if (files == null) {
+				return;
+			}
+			long total = 0;
+			List<File> entries = new ArrayList<File>();
+			for (File f : files) {
+				if (f.getName().endsWith(EXTENSION) && !f.getName().startsWith(".")) {
+					entries.add(f);
+					total += f.length();
+				}
+			}
+			if (total <= limitBytes) {
+				return;
+			}
+			final Map<File, Long> lastUsed = new HashMap<File, Long>();
+			for (File f : entries) {
+				lastUsed.put(f, f.lastModified());
+			}
+			Collections.sort(entries, new Comparator<File>() {
+				@Override
+				public int compare(File a, File b) {
+					return Long.compare(lastUsed.get(a), lastUsed.get(b));
+				}
+			});
+			for (File f : entries) {
+				if (total <= limitBytes) {
+					break;
+				}
+				long length = f.length();
+				if (!f.equals(keep) && f.delete()) {
+					total -= length;
+				}
+			}
+		}
+	}
+
+
+	// PER-CELL RESULTS OF EVERY IMAGE IN ONE FILE, APPENDED AS EACH IMAGE IS WRITTEN. THE FILE IS A SEQUENCE
+	// OF BLOCKS, ONE PER IMAGE: ITS LENGTH, THE IMAGE NAME, UNITS AND CHANNEL NAMES, THEN EACH COLUMN AS ONE
+	// TYPED ARRAY. A BLOCK IS APPENDED IN ONE WRITE UNDER A FILE LOCK, SO A READER ONLY EVER SEES WHOLE BLOCKS
+	// PLUS, AFTER A CRASH, A TORN LAST ONE THAT IT IGNORES AND THAT THE NEXT APPEND CUTS OFF. AN IMAGE
+	// PROCESSED AGAIN GETS A NEW BLOCK, AND ITS LAST BLOCK IS THE ONE THAT COUNTS.
+	static class ResultsStore {
+		static final String FILE_NAME = "vesscoopj_results.bin";
+		static final String CSV_NAME = "vesscoopj_results.csv";
+		private static final int MAGIC = 0x56434a52;
+		private static final int VERSION = 1;
+		// IN BLOCK ORDER; LENGTHS, AREAS AND VOLUMES ARE IN THE BLOCK'S UNITS. A BLOCK WITHOUT THE
+		// VOLUMETRIC OVERLAP (THE LAST THREE) STOPS AFTER THE 2D COLUMNS
+		static final String[] COLUMNS = { "Maximum Cell Width", "Total Cell Area", "Cell-Vessel Overlap",
+				"% of Cell Area Overlapping with Vessel", "Average Intensity in Channel 1 (per pixel)", "Average Intensity in Channel 2 (per pixel)",
+				"Cell Volume", "Cell-Vessel Overlap Volume", "% of Cell Volume Overlapping with Vessel" };
+
+		final File file;
+
+		ResultsStore(File file) {
+			this.file = file;
+		}
+
+		static class Block {
+			String imageName;
+			String units;
+			String channel1;
+			String channel2;
+			// ONE VALUE PER CELL IN EACH OF COLUMNS
+			double[][] columns;
+
+			int cells() {
+				return columns[0].length;
+			}
+		}
+
+		static Block block(String imageName, String units, String channel1, String channel2, double[]... columns) {
+			Block block = new Block();
+			block.imageName = imageName;
+			block.units = units;
+			block.channel1 = channel1;
+			block.channel2 = channel2;
+			block.columns = columns;
+			return block;
+		}
+
+		// SYNCHRONIZED FOR THE WRITERS OF THIS RUN, LOCKED FOR OTHER PROCESSES
+		synchronized void append(Block block) throws IOException {
+			ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(64 + 8 * block.cells() * block.columns.length);
+			DataOutputStream body = new DataOutputStream(bodyBytes);
+			body.writeUTF(block.imageName);
+			body.writeUTF(block.units);
+			body.writeUTF(block.channel1);
+			body.writeUTF(block.channel2);
+			body.writeInt(block.cells());
+			body.writeInt(block.columns.length);
+			for (double[] column : block.columns) {
+				for (double v : column) {
+					body.writeDouble(v);
+				}
+			}
+			body.flush();
+			ByteBuffer buffer = ByteBuffer.allocate(12 + bodyBytes.size());
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(bodyBytes.size()).put(bodyBytes.toByteArray());
+			buffer.flip();
+
+			RandomAccessFile out = new RandomAccessFile(file, "rw");
+			try {
+				FileChannel channel = out.getChannel();
+				FileLock lock = channel.lock();
+				try {
+					// A WRITER THAT DIED MID-BLOCK LEFT A TORN TAIL; CUT IT OFF SO THIS BLOCK STARTS ON A BOUNDARY
+					long end = completeLength(channel);
+					if (end < channel.size()) {
+						channel.truncate(end);
+					}
+					channel.position(end);
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+					channel.force(false);
+				} finally {
+					lock.release();
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		// WHERE THE LAST COMPLETE BLOCK ENDS
+		private static long completeLength(FileChannel channel) throws IOException {
+			long size = channel.size();
+			long position = 0;
+			ByteBuffer header = ByteBuffer.allocate(12);
+			while (size - position >= 12) {
+				header.clear();
+				while (header.hasRemaining() && channel.read(header, position + header.position()) > 0) {
+					// KEEP READING
+				}
+				header.flip();
+				if (header.remaining() < 12 || header.getInt() != MAGIC || header.getInt() != VERSION) {
+					break;
+				}
+				int length = header.getInt();
+				if (length < 0 || size - position - 12 < length) {
+					break;
+				}
+				position += 12 + length;
+			}
+			return position;
+		}
+
+		// EVERY COMPLETE BLOCK, IN THE ORDER THEY WERE APPENDED, UP TO A TORN ONE
+		static List<Block> read(File file) throws IOException {
+			List<Block> blocks = new ArrayList<Block>();
+			FileInputStream in = new FileInputStream(file);
+			try {
+				FileChannel channel = in.getChannel();
+				MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				while (map.remaining() >= 12) {
+					if (map.getInt() != MAGIC || map.getInt() != VERSION) {
+						if (blocks.isEmpty()) {
+							throw new IOException(file + " is not a results store, or is from another version");
+						}
+						// A TORN TAIL THAT NO APPEND HAS CUT OFF YET
+						break;
+					}
+					int length = map.getInt();
+					if (length < 0 || map.remaining() < length) {
+						break;
+					}
+					byte[] bodyBytes = new byte[length];
+					map.get(bodyBytes);
+					DataInputStream body = new DataInputStream(new ByteArrayInputStream(bodyBytes));
+					Block block = new Block();
+					block.imageName = body.readUTF();
+					block.units = body.readUTF();
+					block.channel1 = body.readUTF();
+					block.channel2 = body.readUTF();
+					int cells = body.readInt();
+					block.columns = new double[body.readInt()][cells];
+					for (double[] column : block.columns) {
+						for (int i = 0; i < cells; i++) {
+							column[i] = body.readDouble();
+						}
+					}
+					blocks.add(block);
+				}
+			} finally {
+				in.close();
+			}
+			return blocks;
+		}
+
+		// ONE ROW PER CELL OF THE LAST BLOCK OF EACH IMAGE, IMAGES IN NAME ORDER
+		static void exportCsv(File store, File csv) throws IOException {
+			Map<String, Block> latest = new TreeMap<String, Block>();
+			for (Block block : read(store)) {
+				latest.put(block.imageName, block);
+			}
+			File temp = OutputWriter.temporaryFile(csv, ".csv");
+			try {
+				Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8));
+				try {
+					out.write("Image,Cell,Units,Channel 1,Channel 2");
+					for (String column : COLUMNS) {
+						out.write(',');
+						out.write(csvField(column));
+					}
+					out.write('\n');
+					for (Block block : latest.values()) {
+						String image = csvField(block.imageName) + ",";
+						String names = "," + csvField(block.units) + "," + csvField(block.channel1) + "," + csvField(block.channel2);
+						for (int i = 0; i < block.cells(); i++) {
+							out.write(image);
+							out.write(Integer.toString(i + 1));
+							out.write(names);
+							for (int c = 0; c < COLUMNS.length; c++) {
+								out.write(',');
+								if (c < block.columns.length) {
+									out.write(Double.toString(block.columns[c][i]));
+								}
+							}
+							out.write('\n');
+						}
+					}
+				} finally {
+					out.close();
+				}
+				OutputWriter.moveIntoPlace(temp, csv);
+			} finally {
+				temp.delete();
+			}
+		}
+
+		private static String csvField(String value) {
+			if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+				return value;
+			}
+			return '"' + value.replace("\"", "\"\"") + '"';
+		}
+	}
+
+
+	// WALL TIME, CPU TIME, ALLOCATED BYTES AND HEAP USE OF EACH STAGE OF EACH IMAGE.
+	// CPU TIME AND ALLOCATIONS ARE THOSE OF THE THREAD RUNNING THE STAGE; PROCESS CPU TIME ALSO
+	// COUNTS HELPER THREADS (TILES, ROW BANDS) BUT INCLUDES WHATEVER OTHER WORKERS DID MEANWHILE.
+	static class StageProfiler {
+		static final String SUMMARY_FILE = "vesscoopj_timing_summary.csv";
+		// RAW SAMPLES BY STAGE, FOR A SUMMARY OVER SEVERAL PROCESSES
+		static final String SAMPLES_FILE = "vesscoopj_timing_samples.tsv";
+
+		private final boolean enabled;
+		private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		private final com.sun.management.ThreadMXBean allocationBean;
+		private final com.sun.management.OperatingSystemMXBean processBean;
+		private final List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+		// SAMPLES OF IMAGES WHOSE TIMING FILE IS NOT WRITTEN YET, AND OF THE WHOLE RUN BY STAGE
+		private final Map<String, List<Sample>> byImage = new HashMap<String, List<Sample>>();
+		private final Map<String, List<Sample>> byStage = new LinkedHashMap<String, List<Sample>>();
+		// HIGHEST PEAK HEAP OF THE PROCESSES WHOSE SAMPLES WERE LOADED
+		private long loadedPeakHeap;
+		// HOW OFTEN THE HEAP IS SAMPLED WHILE A STAGE RUNS
+		static final long HEAP_SAMPLE_MILLIS = 10;
+		private final Set<Stage> running = Collections.newSetFromMap(new ConcurrentHashMap<Stage, Boolean>());
+		private final Object samplerLock = new Object();
+		private boolean sampling;
+
+		StageProfiler(boolean enabled) {
+			this.enabled = enabled;
+			// THE MONITORING COSTS SOMETHING ON EVERY THREAD, SO IT IS ONLY TURNED ON WHEN PROFILING
+			boolean cpu = threadBean.isCurrentThreadCpuTimeSupported();
+			if (enabled && cpu && !threadBean.isThreadCpuTimeEnabled()) {
+				threadBean.setThreadCpuTimeEnabled(true);
+			}
+			if (threadBean instanceof com.sun.management.ThreadMXBean
+					&& ((com.sun.management.ThreadMXBean)threadBean).isThreadAllocatedMemorySupported()) {
+				allocationBean = (com.sun.management.ThreadMXBean)threadBean;
+				if (enabled) {
+					allocationBean.setThreadAllocatedMemoryEnabled(true);
+				}
+			} else {
+				allocationBean = null;
+			}
+			OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+			processBean = os instanceof com.sun.management.OperatingSystemMXBean ? (com.sun.management.OperatingSystemMXBean)os : null;
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+					heapPools.add(pool);
+					if (enabled) {
+						pool.resetPeakUsage();
+					}
+				}
+			}
+		}
+
+		// CALL stop() ON THE SAME THREAD, IN A FINALLY BLOCK
+		Stage start(String imageName, String stage) {
+			Stage s = new Stage(imageName, stage);
+			if (enabled) {
+				running.add(s);
+				startSampler();
+			}
+			return s;
+		}
+
+		// SAMPLES THE HEAP INTO EVERY RUNNING STAGE UNTIL NONE IS LEFT; THE NEXT STAGE STARTS IT AGAIN
+		private void startSampler() {
+			synchronized (samplerLock) {
+				if (sampling) {
+					return;
+				}
+				sampling = true;
+			}
+			Thread sampler = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							Thread.sleep(HEAP_SAMPLE_MILLIS);
+							synchronized (samplerLock) {
+								if (running.isEmpty()) {
+									sampling = false;
+									return;
+								}
+							}
+							long used = heapUsed();
+							for (Stage s : running) {
+								s.sampleHeap(used);
+							}
+						}
+					} catch (InterruptedException e) {
+						synchronized (samplerLock) {
+							sampling = false;
+						}
+					}
+				}
+			}, "VessCoopJ-heap-sampler");
+			sampler.setDaemon(true);
+			sampler.start();
+		}
+
+		private static long heapUsed() {
+			Runtime rt = Runtime.getRuntime();
+			return rt.totalMemory() - rt.freeMemory();
+		}
+
+		// A FAILED IMAGE GETS NO TIMING FILE; ITS STAGES STILL COUNT IN THE SUMMARY
+		synchronized void discard(String imageName) {
+			byImage.remove(imageName);
+		}
+
+		class Stage {
+			private final String imageName;
+			private final String stage;
+			private final long wall;
+			private final long cpu;
+			private final long processCpu;
+			private final long allocated;
+			// HIGHEST HEAP USE OF THE PROCESS SEEN WHILE THE STAGE RAN
+			private volatile long peakHeap;
+
+			private Stage(String imageName, String stage) {
+				this.imageName = imageName;
+				this.stage = stage;
+				this.cpu = enabled ? threadCpu() : 0;
+				this.processCpu = enabled ? processCpu() : 0;
+				this.allocated = enabled ? threadAllocated() : 0;
+				this.peakHeap = enabled ? heapUsed() : 0;
+				this.wall = System.nanoTime();
+			}
+
+			// ONLY THE SAMPLER THREAD WRITES WHILE THE STAGE RUNS
+			private void sampleHeap(long used) {
+				if (used > peakHeap) {
+					peakHeap = used;
+				}
+			}
+
+			void stop() {
+				if (!enabled) {
+					return;
+				}
+				running.remove(this);
+				Sample s = new Sample();
+				s.wallNanos = System.nanoTime() - wall;
+				s.cpuNanos = threadCpu() - cpu;
+				s.processCpuNanos = processCpu() - processCpu;
+				s.allocatedBytes = threadAllocated() - allocated;
+				Runtime rt = Runtime.getRuntime();
+				s.heapUsedBytes = rt.totalMemory() - rt.freeMemory();
+				s.peakHeapBytes = Math.max(peakHeap, s.heapUsedBytes);
+				s.thread = Thread.currentThread().getName();
+				s.stage = stage;
+				record(imageName, s);
+			}
+		}
+
+		static class Sample {
+			String stage;
+			String thread;
+			long wallNanos;
+			long cpuNanos;
+			long processCpuNanos;
+			long allocatedBytes;
+			long heapUsedBytes;
+			long peakHeapBytes;
+		}
+
+		private synchronized void record(String imageName, Sample s) {
+			List<Sample> image = byImage.get(imageName);
+			if (image == null) {
+				image = new ArrayList<Sample>();
+				byImage.put(imageName, image);
+			}
+			image.add(s);
+			List<Sample> stage = byStage.get(s.stage);
+			if (stage == null) {
+				stage = new ArrayList<Sample>();
+				byStage.put(s.stage, stage);
+			}
+			stage.add(s);
+		}
+
+		private long threadCpu() {
+			return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : 0;
+		}
+
+		private long processCpu() {
+			return processBean != null ? processBean.getProcessCpuTime() : 0;
+		}
+
+		private long threadAllocated() {
+			return allocationBean != null ? allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+		}
+
+		// HIGHEST HEAP USE SINCE THE RUN STARTED, SUMMED OVER THE HEAP POOLS
+		long peakHeapBytes() {
+			long peak = 0;
+			for (MemoryPoolMXBean pool : heapPools) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+			return Math.max(peak, loadedPeakHeap);
+		}
+
+		// ONE LINE PER SAMPLE: STAGE, WALL, CPU, ALLOCATED AND PEAK HEAP; THE FIRST LINE HOLDS THE RUN'S PEAK HEAP
+		void writeSamples(File file) throws IOException {
+			if (!enabled) {
+				return;
+			}
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+			try {
+				out.write("peakHeapBytes\t" + peakHeapBytes() + "\n");
+				synchronized (this) {
+					for (Map.Entry<String, List<Sample>> entry : byStage.entrySet()) {
+						for (Sample s : entry.getValue()) {
+							out.write(entry.getKey() + "\t" + s.wallNanos + "\t" + s.cpuNanos + "\t" + s.allocatedBytes + "\t" + s.peakHeapBytes + "\n");
+						}
+					}
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		// ADD THE SAMPLES ANOTHER PROCESS WROTE WITH writeSamples
+		void loadSamples(File file) throws IOException {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					String[] fields = line.split("\t");
+					if (fields.length == 2 && fields[0].equals("peakHeapBytes")) {
+						synchronized (this) {
+							loadedPeakHeap = Math.max(loadedPeakHeap, Long.parseLong(fields[1]));
+						}
+					} else if (fields.length == 5) {
+						Sample s = new Sample();
+						s.stage = fields[0];
+						s.wallNanos = Long.parseLong(fields[1]);
+						s.cpuNanos = Long.parseLong(fields[2]);
+						s.allocatedBytes = Long.parseLong(fields[3]);
+						s.peakHeapBytes = Long.parseLong(fields[4]);
+						synchronized (this) {
+							List<Sample> stage = byStage.get(s.stage);
+							if (stage == null) {
+								stage = new ArrayList<Sample>();
+								byStage.put(s.stage, stage);
+							}
+							stage.add(s);
+						}
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		// ONE ROW PER STAGE OF THE IMAGE, IN THE ORDER THE STAGES FINISHED
+		void writeImage(String imageName, String path, OutputWriter outputs) throws IOException {
+			if (!enabled) {
+				return;
+			}
+			List<Sample> samples;
+			synchronized (this) {
+				samples = byImage.remove(imageName);
+			}
+			if (samples == null) {
+				return;
+			}
+			// THE PEAK IS THE WHOLE PROCESS'S HEAP, SAMPLED WHILE THE STAGE RAN; WITH SEVERAL IMAGES IN FLIGHT
+			// IT INCLUDES THEIRS TOO. THE LAST ROW IS THE IMAGE AS A WHOLE
+			ResultsTable table = new ResultsTable();
+			Sample image = new Sample();
+			image.stage = "whole image";
+			image.thread = "";
+			for (Sample s : samples) {
+				addImageRow(table, s);
+				image.wallNanos += s.wallNanos;
+				image.cpuNanos += s.cpuNanos;
+				image.processCpuNanos += s.processCpuNanos;
+				image.allocatedBytes += s.allocatedBytes;
+				image.heapUsedBytes = s.heapUsedBytes;
+				image.peakHeapBytes = Math.max(image.peakHeapBytes, s.peakHeapBytes);
+			}
+			addImageRow(table, image);
+			outputs.saveResults(table, path);
+		}
+
+		private static void addImageRow(ResultsTable table, Sample s) {
+			table.addValue("Stage", s.stage);
+			table.addValue("Thread", s.thread);
+			table.addValue("Wall (ms)", s.wallNanos / 1e6);
+			table.addValue("CPU (ms)", s.cpuNanos / 1e6);
+			table.addValue("Process CPU (ms)", s.processCpuNanos / 1e6);
+			table.addValue("Allocated (MB)", s.allocatedBytes / 1048576.0);
+			table.addValue("Heap Used After (MB)", s.heapUsedBytes / 1048576.0);
+			table.addValue("Peak Heap During Stage (MB)", s.peakHeapBytes / 1048576.0);
+			table.addRow();
+		}
+
+		// P50 AND P95 OF EVERY STAGE OVER ALL IMAGES OF THE RUN
+		void writeSummary(String path, OutputWriter outputs) throws IOException {
+			if (!enabled) {
+				return;
+			}
+			ResultsTable table = new ResultsTable();
+			synchronized (this) {
+				for (Map.Entry<String, List<Sample>> entry : byStage.entrySet()) {
+					List<Sample> samples = entry.getValue();
+					long[] wall = new long[samples.size()];
+					long[] cpu = new long[samples.size()];
+					long[] allocated = new long[samples.size()];
+					long[] peak = new long[samples.size()];
+					long total = 0;
+					for (int i = 0; i < wall.length; i++) {
+						wall[i] = samples.get(i).wallNanos;
+						cpu[i] = samples.get(i).cpuNanos;
+						allocated[i] = samples.get(i).allocatedBytes;
+						peak[i] = samples.get(i).peakHeapBytes;
+						total += wall[i];
+					}
+					table.addValue("Stage", entry.getKey());
+					table.addValue("Images", samples.size());
+					table.addValue("Total Wall (s)", total / 1e9);
+					table.addValue("Wall p50 (ms)", percentile(wall, 50) / 1e6);
+					table.addValue("Wall p95 (ms)", percentile(wall, 95) / 1e6);
+					table.addValue("CPU p50 (ms)", percentile(cpu, 50) / 1e6);
+					table.addValue("CPU p95 (ms)", percentile(cpu, 95) / 1e6);
+					table.addValue("Allocated p50 (MB)", percentile(allocated, 50) / 1048576.0);
+					table.addValue("Allocated p95 (MB)", percentile(allocated, 95) / 1048576.0);
+					table.addValue("Peak Heap During Stage p95 (MB)", percentile(peak, 95) / 1048576.0);
+					table.addValue("Peak Heap Of Run (MB)", peakHeapBytes() / 1048576.0);
+					table.addRow();
+				}
+			}
+			outputs.saveResults(table, path);
+		}
+
+		// NEAREST RANK
+		static long percentile(long[] values, int p) {
+			if (values.length == 0) {
+				return 0;
+			}
+			long[] sorted = values.clone();
+			Arrays.sort(sorted);
+			int rank = (int)Math.ceil(p / 100.0 * sorted.length);
+			return sorted[Math.max(0, rank - 1)];
+		}
+	}
+
+
+	// DESERIALIZES EACH CLASSIFIER MODEL ONCE PER RUN AND SHARES IT BETWEEN IMAGES AND WORKERS
+	static class ClassifierCache {
+		static final String DRIFT_FILE = "vesscoopj_coarse_drift.csv";
+		// FULL-RESOLUTION TILES AROUND THE UNCERTAIN PIXELS OF A COARSE CLASSIFICATION
+		static final int REFINE_TILE = 512;
+
+		private final ConcurrentHashMap<String, FutureTask<CachedClassifier>> models = new ConcurrentHashMap<String, FutureTask<CachedClassifier>>();
+		private final int tileSize;
+		int validateCoarseEvery = 0;
+		// WHERE LOADED MODELS CACHE THEIR FEATURE STACKS, NULL FOR NOWHERE
+		DiskCache disk;
+		private final List<CoarseRun> coarse = new ArrayList<CoarseRun>();
+		// ONE PERMIT PER MB OF ESTIMATED FEATURE STACK MEMORY
+		private final int memoryBudgetMB;
+		private final Semaphore memoryBudget;
+
+		ClassifierCache(int tileSize, long memoryBudgetMB) {
+			this.tileSize = tileSize;
+			this.memoryBudgetMB = (int)Math.min(Integer.MAX_VALUE, memoryBudgetMB);
+			this.memoryBudget = new Semaphore(this.memoryBudgetMB, true);
+		}
+
+		// CLASSIFY AN IMAGE, SPLITTING IT INTO OVERLAPPING TILES WHEN IT IS LARGER THAN ONE TILE
+		ImagePlus classify(String path, ImagePlus image, int threads) throws IOException {
+			CachedClassifier classifier = get(path, image);
+			if ((image.getWidth() <= tileSize && image.getHeight() <= tileSize) || classifier.margin(image) < 0) {
+				int permits = classifier.estimateMB(image.getWidth(), image.getHeight());
+				acquire(permits);
+				try {
+					return classifier.apply(image, threads);
+				} finally {
+					memoryBudget.release(Math.min(permits, memoryBudgetMB));
+				}
+			}
+			byte[] classes = new byte[image.getWidth() * image.getHeight()];
+			classifyTiles(classifier, image, threads, tileSize, null, classes);
+			return classResult(classes, image);
+		}
+
+		// CLASSIFY A DOWNSAMPLED COPY, KEEP ITS CLASS WHERE IT IS CONFIDENT AND AWAY FROM CLASS BORDERS,
+		// AND RECLASSIFY THE REST AT FULL RESOLUTION. THE COARSE FEATURES SEE A LARGER PHYSICAL SCALE
+		// THAN THE MODEL WAS TRAINED ON, SO THE RESULT CAN DRIFT: SEE validateCoarseEvery
+		ImagePlus classifyCoarse(String path, String imageName, ImagePlus image, int threads, int factor, double minConfidence) throws IOException {
+			long start = System.nanoTime();
+			CachedClassifier classifier = get(path, image);
+			int width = image.getWidth();
+			int height = image.getHeight();
+			int cw = Math.max(1, (width + factor - 1) / factor);
+			int ch = Math.max(1, (height + factor - 1) / factor);
+			ImagePlus small = new ImagePlus(image.getTitle(), image.getProcessor().resize(cw, ch, true));
+			int permits = classifier.estimateMB(cw, ch);
+			acquire(permits);
+			float[][] probabilities;
+			try {
+				probabilities = classifier.probabilities(small, threads);
+			} finally {
+				memoryBudget.release(Math.min(permits, memoryBudgetMB));
+			}
+
+			// COARSE CLASS, AND WHETHER THE PIXEL IS UNCERTAIN OR ON A CLASS BORDER
+			byte[] coarseClasses = new byte[cw * ch];
+			boolean[] uncertain = new boolean[cw * ch];
+			for (int i = 0; i < coarseClasses.length; i++) {
+				int best = 0;
+				for (int c = 1; c < probabilities.length; c++) {
+					if (probabilities[c][i] > probabilities[best][i]) best = c;
+				}
+				coarseClasses[i] = (byte)best;
+				uncertain[i] = probabilities[best][i] < minConfidence;
+			}
+			for (int y = 0; y < ch; y++) {
+				for (int x = 0; x < cw; x++) {
+					int i = y * cw + x;
+					for (int dy = -1; dy <= 1 && !uncertain[i]; dy++) {
+						for (int dx = -1; dx <= 1; dx++) {
+							int xx = x + dx, yy = y + dy;
+							if (xx >= 0 && yy >= 0 && xx < cw && yy < ch && coarseClasses[yy * cw + xx] != coarseClasses[i]) {
+								uncertain[i] = true;
+								break;
+							}
+						}
+					}
+				}
+			}
+			// ONE COARSE PIXEL OF MARGIN AROUND EVERYTHING UNCERTAIN
+			boolean[] band = new boolean[cw * ch];
+			for (int y = 0; y < ch; y++) {
+				for (int x = 0; x < cw; x++) {
+					if (!uncertain[y * cw + x]) continue;
+					for (int yy = Math.max(0, y - 1); yy <= Math.min(ch - 1, y + 1); yy++) {
+						for (int xx = Math.max(0, x - 1); xx <= Math.min(cw - 1, x + 1); xx++) {
+							band[yy * cw + xx] = true;
+						}
+					}
+				}
+			}
+
+			// CONFIDENT PIXELS TAKE THEIR COARSE CLASS, THE BAND IS RECLASSIFIED AT FULL RESOLUTION
+			byte[] classes = new byte[width * height];
+			BitMask refine = new BitMask(width, height);
+			for (int y = 0; y < height; y++) {
+				int row = (y / factor) * cw;
+				for (int x = 0; x < width; x++) {
+					int c = row + x / factor;
+					if (band[c]) {
+						refine.set(y * width + x);
+					} else {
+						classes[y * width + x] = coarseClasses[c];
+					}
+				}
+			}
+			classifyTiles(classifier, image, threads, Math.min(tileSize, REFINE_TILE), refine, classes);
+			ImagePlus result = classResult(classes, image);
+
+			CoarseRun run = new CoarseRun();
+			run.imageName = imageName;
+			run.classifier = new File(path).getName();
+			run.factor = factor;
+			run.minConfidence = minConfidence;
+			run.refined = refine.count() / (double)classes.length;
+			run.coarseNanos = System.nanoTime() - start;
+			if (validateCoarseEvery > 0 && classifier.coarseRuns.getAndIncrement() % validateCoarseEvery == 0) {
+				start = System.nanoTime();
+				ImageProcessor full = classify(path, image, threads).getProcessor();
+				run.fullNanos = System.nanoTime() - start;
+				long differing = 0;
+				for (int i = 0; i < classes.length; i++) {
+					if (full.get(i) != (classes[i] & 0xff)) differing++;
+				}
+				run.drift = differing / (double)classes.length;
+			}
+			synchronized (coarse) {
+				coarse.add(run);
+			}
+			return result;
+		}
+
+		static class CoarseRun {
+			String imageName;
+			String classifier;
+			int factor;
+			double minConfidence;
+			double refined;
+			long coarseNanos;
+			// SET ONLY WHEN THE IMAGE WAS ALSO CLASSIFIED AT FULL RESOLUTION
+			long fullNanos;
+			double drift = Double.NaN;
+		}
+
+		// EACH TILE CARRIES A MARGIN WIDE ENOUGH FOR THE FEATURE FILTERS, SO AWAY FROM THE IMAGE
+		// BORDER EVERY PIXEL SEES EXACTLY THE NEIGHBOURHOOD IT HAS IN THE WHOLE IMAGE.
+		// WITH only, TILES WITHOUT A PIXEL OF THE MASK ARE SKIPPED AND ONLY MASKED PIXELS ARE WRITTEN.
+		// WITHOUT A BOUNDED MARGIN THE WHOLE IMAGE IS ONE TILE
+		private void classifyTiles(final CachedClassifier classifier, ImagePlus image, int threads, int tileSize,
+				final BitMask only, final byte[] classes) throws IOException {
+			final int width = image.getWidth();
+			final int height = image.getHeight();
+			final ImageProcessor ip = image.getProcessor();
+			final int margin = classifier.margin(image);
+			if (margin < 0) {
+				int permits = classifier.estimateMB(width, height);
+				acquire(permits);
+				try {
+					ImageProcessor result = classifier.apply(image, threads, only).getProcessor();
+					for (int i = 0; i < classes.length; i++) {
+						if (only == null || only.get(i)) {
+							classes[i] = (byte)result.get(i % width, i / width);
+						}
+					}
+				} finally {
+					memoryBudget.release(Math.min(permits, memoryBudgetMB));
+				}
+				return;
+			}
+
+			ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads > 0 ? threads : Prefs.getThreads()));
+			List<Future<?>> tiles = new ArrayList<Future<?>>();
+			for (int ty = 0; ty < height; ty += tileSize) {
+				for (int tx = 0; tx < width; tx += tileSize) {
+					final int x0 = tx, y0 = ty;
+					final int x1 = Math.min(width, tx + tileSize), y1 = Math.min(height, ty + tileSize);
+					if (only != null && !intersects(only, x0, y0, x1, y1)) {
+						continue;
+					}
+					tiles.add(pool.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws InterruptedException {
+							int mx0 = Math.max(0, x0 - margin), my0 = Math.max(0, y0 - margin);
+							int mx1 = Math.min(width, x1 + margin), my1 = Math.min(height, y1 + margin);
+							int permits = classifier.estimateMB(mx1 - mx0, my1 - my0);
+							acquireInterruptibly(permits);
+							try {
+								ImageProcessor crop;
+								synchronized (ip) {
+									ip.setRoi(mx0, my0, mx1 - mx0, my1 - my0);
+									crop = ip.crop();
+								}
+								BitMask tileMask = null;
+								if (only != null) {
+									tileMask = new BitMask(mx1 - mx0, my1 - my0);
+									for (int y = y0; y < y1; y++) {
+										for (int x = x0; x < x1; x++) {
+											if (only.get(y * width + x)) tileMask.set((y - my0) * tileMask.width + x - mx0);
+										}
+									}
+								}
+								ImagePlus tile = new ImagePlus("tile", crop);
+								ImageProcessor result = classifier.apply(tile, 1, tileMask).getProcessor();
+								for (int y = y0; y < y1; y++) {
+									for (int x = x0; x < x1; x++) {
+										if (only == null || only.get(y * width + x)) {
+											classes[y * width + x] = (byte)result.get(x - mx0, y - my0);
+										}
+									}
+								}
+							} finally {
+								memoryBudget.release(Math.min(permits, memoryBudgetMB));
+							}
+							return null;
+						}
+					}));
+				}
+			}
+			pool.shutdown();
+			try {
+				for (Future<?> tile : tiles) {
+					tile.get();
+				}
+			} catch (InterruptedException e) {
+				pool.shutdownNow();
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while classifying tiles", e);
+			} catch (ExecutionException e) {
+				pool.shutdownNow();
+				throw new IOException("Could not classify a tile of " + image.getTitle(), e.getCause());
+			}
+			ip.setRoi((Rectangle)null);
+		}
+
+		private static boolean intersects(BitMask mask, int x0, int y0, int x1, int y1) {
+			for (int y = y0; y < y1; y++) {
+				if (mask.count(y * mask.width + x0, y * mask.width + x1) > 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private static ImagePlus classResult(byte[] classes, ImagePlus image) {
+			ImagePlus result = new ImagePlus("Classification result", new ByteProcessor(image.getWidth(), image.getHeight(), classes));
+			result.setCalibration(image.getCalibration());
+			return result;
+		}
+
+		// A TILE LARGER THAN THE WHOLE BUDGET WAITS UNTIL IT HAS THE BUDGET TO ITSELF
+		private void acquire(int permits) throws IOException {
+			try {
+				acquireInterruptibly(permits);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for classifier memory", e);
+			}
+		}
+
+		private void acquireInterruptibly(int permits) throws InterruptedException {
+			memoryBudget.acquire(Math.min(permits, memoryBudgetMB));
+		}
+
+		// THE FIRST CALLER FOR A PATH LOADS THE MODEL, CONCURRENT CALLERS WAIT FOR IT
+		CachedClassifier get(final String path, final ImagePlus image) throws IOException {
+			FutureTask<CachedClassifier> task = new FutureTask<CachedClassifier>(new Callable<CachedClassifier>() {
+				@Override
+				public CachedClassifier call() throws IOException {
+					return CachedClassifier.load(path, image, disk);
+				}
+			});
+			FutureTask<CachedClassifier> existing = models.putIfAbsent(path, task);
+			if (existing == null) {
+				existing = task;
+				task.run();
+			}
+			try {
+				CachedClassifier classifier = existing.get();
+				if (existing != task) {
+					classifier.hits.incrementAndGet();
+				}
+				return classifier;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while loading classifier " + path, e);
+			} catch (ExecutionException e) {
+				models.remove(path, existing);
+				throw new IOException("Could not load classifier " + path, e.getCause());
+			}
+		}
+
+		// LOG LOAD TIME AND REUSE OF EVERY MODEL
+		void report() {
+			for (FutureTask<CachedClassifier> task : models.values()) {
+				if (!task.isDone()) {
+					continue;
+				}
+				try {
+					CachedClassifier c = task.get();
+					IJ.log("Classifier " + new File(c.path).getName() + ": loaded once in " + IJ.d2s(c.loadNanos / 1e6, 0)
+							+ " ms, reused from cache " + c.hits.get() + " times, "
+							+ (c.features == null ? "full feature stack"
+								: c.usedAttributes.length + " of " + (c.header.numAttributes() - 1) + " attributes used, "
+									+ c.featurePlanes() + " feature planes built"));
+				} catch (Exception e) {
+					// FAILED LOADS ARE LOGGED BY THE IMAGE THAT TRIGGERED THEM
+				}
+			}
+			List<CoarseRun> runs = finishedCoarseRuns();
+			if (runs.isEmpty()) {
+				return;
+			}
+			double refined = 0, drift = 0, maxDrift = 0;
+			int validated = 0;
+			for (CoarseRun run : runs) {
+				refined += run.refined;
+				if (!Double.isNaN(run.drift)) {
+					drift += run.drift;
+					maxDrift = Math.max(maxDrift, run.drift);
+					validated++;
+				}
+			}
+			IJ.log("Coarse-to-fine classification: " + IJ.d2s(100 * refined / runs.size(), 1) + "% of pixels reclassified at full resolution"
+					+ (validated == 0 ? "" : ", " + IJ.d2s(100 * drift / validated, 2) + "% mean and " + IJ.d2s(100 * maxDrift, 2)
+						+ "% max pixels differing from full resolution over " + validated + " checked classifications"));
+		}
+
+		private List<CoarseRun> finishedCoarseRuns() {
+			synchronized (coarse) {
+				return new ArrayList<CoarseRun>(coarse);
+			}
+		}
+
+		// ONE ROW PER COARSE-TO-FINE CLASSIFICATION, NOTHING WHEN SCREENING WAS OFF
+		void writeDrift(String path, OutputWriter outputs) throws IOException {
+			List<CoarseRun> runs = finishedCoarseRuns();
+			if (runs.isEmpty()) {
+				return;
+			}
+			Collections.sort(runs, new Comparator<CoarseRun>() {
+				@Override
+				public int compare(CoarseRun a, CoarseRun b) {
+					int c = a.imageName.compareTo(b.imageName);
+					return c != 0 ? c : a.classifier.compareTo(b.classifier);
+				}
+			});
+			ResultsTable table = new ResultsTable();
+			for (CoarseRun run : runs) {
+				table.addValue("Image", run.imageName);
+				table.addValue("Classifier", run.classifier);
+				table.addValue("Coarse Factor", run.factor);
+				table.addValue("Refine Below Probability", run.minConfidence);
+				table.addValue("Refined (%)", 100 * run.refined);
+				table.addValue("Coarse-to-fine (ms)", run.coarseNanos / 1e6);
+				table.addValue("Full Resolution (ms)", Double.isNaN(run.drift) ? Double.NaN : run.fullNanos / 1e6);
+				table.addValue("Differing From Full Resolution (%)", 100 * run.drift);
+				table.addRow();
+			}
+			outputs.saveResults(table, path);
+		}
+
+		// THE ROWS OF A FILE WRITTEN BY writeDrift, SO THE PARTS OF A SHARDED RUN CAN BE WRITTEN AS ONE
+		void loadDrift(File file) throws IOException {
+			ResultsTable table = ResultsTable.open(file.getPath());
+			for (int row = 0; row < table.size(); row++) {
+				CoarseRun run = new CoarseRun();
+				run.imageName = table.getStringValue("Image", row);
+				run.classifier = table.getStringValue("Classifier", row);
+				run.factor = (int)table.getValue("Coarse Factor", row);
+				run.minConfidence = table.getValue("Refine Below Probability", row);
+				run.refined = table.getValue("Refined (%)", row) / 100;
+				run.coarseNanos = (long)(table.getValue("Coarse-to-fine (ms)", row) * 1e6);
+				double full = table.getValue("Full Resolution (ms)", row);
+				run.fullNanos = Double.isNaN(full) ? 0 : (long)(full * 1e6);
+				run.drift = table.getValue("Differing From Full Resolution (%)", row) / 100;
+				synchronized (coarse) {
+					coarse.add(run);
+				}
+			}
+		}
+	}
+
+
+	// A DESERIALIZED CLASSIFIER AND ITS TRAINING HEADER, READ-ONLY ONCE LOADED
+	static class CachedClassifier {
+		final String path;
+		final AbstractClassifier classifier;
+		final Instances header;
+		final long loadNanos;
+		final AtomicLong hits = new AtomicLong();
+		// COARSE-TO-FINE CLASSIFICATIONS, COUNTED TO PICK THE ONES CHECKED AT FULL RESOLUTION
+		final AtomicInteger coarseRuns = new AtomicInteger();
+		// ATTRIBUTES THE MODEL'S SPLITS READ AND THE FEATURE TYPES THAT PRODUCE THEM,
+		// OR NULL WHEN ONLY THE FULL FEATURE STACK IS KNOWN TO BE SAFE
+		final int[] usedAttributes;
+		final boolean[] features;
+		private final float minimumSigma;
+		private final float maximumSigma;
+		private final int membraneThickness;
+		private final int membranePatchSize;
+		// WHAT THE FULL FEATURE STACK BUILDS, NULL WHEN UNKNOWN; ONLY USED TO BOUND THE TILE MARGIN
+		private final boolean[] enabledFeatures;
+		private final boolean useNeighbors;
+		private final DiskCache disk;
+
+		private CachedClassifier(String path, WekaSegmentation loader, long loadNanos, DiskCache disk) {
+			this.path = path;
+			this.disk = disk;
+			this.classifier = loader.getClassifier();
+			this.header = loader.getTrainHeader();
+			this.loadNanos = loadNanos;
+			this.minimumSigma = loader.getMinimumSigma();
+			this.maximumSigma = loader.getMaximumSigma();
+			this.membraneThickness = loader.getMembraneThickness();
+			this.membranePatchSize = loader.getMembranePatchSize();
+			this.enabledFeatures = loader.getEnabledFeatures();
+			this.useNeighbors = loader.useNeighborhood();
+
+			BitSet used = referencedAttributes(classifier);
+			boolean[] required = loader.useNeighborhood() ? null : requiredFeatures(header, used, loader.getEnabledFeatures());
+			if (required == null) {
+				this.usedAttributes = null;
+				this.features = null;
+			} else {
+				used.clear(header.classIndex());
+				this.usedAttributes = new int[used.cardinality()];
+				int k = 0;
+				for (int a = used.nextSetBit(0); a >= 0; a = used.nextSetBit(a + 1)) {
+					usedAttributes[k++] = a;
+				}
+				this.features = required;
+			}
+		}
+
+		static CachedClassifier load(String path, ImagePlus image, DiskCache disk) throws IOException {
+			long start = System.nanoTime();
+			WekaSegmentation loader = new WekaSegmentation(image);
+			if (!loader.loadClassifier(path)) {
+				throw new IOException("Weka could not read " + path);
+			}
+			return new CachedClassifier(path, loader, System.nanoTime() - start, disk);
+		}
+
+		// ATTRIBUTE INDICES TESTED BY ANY SPLIT OF A TREE ENSEMBLE (FastRandomForest OR WEKA'S
+		// RandomForest), OR NULL WHEN THE MODEL IS NOT ONE WE KNOW HOW TO INSPECT
+		static BitSet referencedAttributes(Object model) {
+			BitSet used = new BitSet();
+			try {
+				return collectSplits(model, used) > 0 ? used : null;
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				return null;
+			}
+		}
+
+		// RETURNS THE NUMBER OF TREE NODES VISITED. LEAVES HAVE A NEGATIVE SPLIT ATTRIBUTE
+		private static int collectSplits(Object node, BitSet used) throws ReflectiveOperationException {
+			if (node == null) {
+				return 0;
+			}
+			Object attribute = field(node, "m_Attribute");
+			if (attribute instanceof Integer) {
+				int nodes = 1;
+				if ((Integer)attribute >= 0) {
+					used.set((Integer)attribute);
+				}
+				Object successors = field(node, "m_Successors");
+				if (successors instanceof Object[]) {
+					for (Object child : (Object[])successors) {
+						nodes += collectSplits(child, used);
+					}
+				}
+				return nodes;
+			}
+			// ENSEMBLE MEMBERS, THE BAGGER THAT HOLDS THEM, OR A TREE WRAPPED IN ITS CLASSIFIER.
+			// THE UNTRAINED TEMPLATE IN m_Classifier IS DELIBERATELY NOT VISITED
+			Object members = field(node, "m_Classifiers");
+			if (members instanceof Object[]) {
+				int nodes = 0;
+				for (Object member : (Object[])members) {
+					nodes += collectSplits(member, used);
+				}
+				return nodes;
+			}
+			for (String inner : new String[] { "m_bagger", "m_Tree" }) {
+				Object value = field(node, inner);
+				if (value != null) {
+					return collectSplits(value, used);
+				}
+			}
+			throw new IllegalArgumentException("Not a tree model: " + node.getClass().getName());
+		}
+
+		private static Object field(Object o, String name) throws IllegalAccessException {
+			for (Class<?> c = o.getClass(); c != null; c = c.getSuperclass()) {
+				try {
+					Field f = c.getDeclaredField(name);
+					f.setAccessible(true);
+					return f.get(o);
+				} catch (NoSuchFieldException e) {
+					// LOOK IN THE SUPERCLASS
+				}
+			}
+			return null;
+		}
+
+		// FEATURE TYPES (INDICES INTO FeatureStack.availableFeatures) WHOSE PLANES THE USED ATTRIBUTES
+		// COME FROM. AN ATTRIBUTE WE CANNOT ATTRIBUTE TO AN ENABLED TYPE MEANS NO PRUNING
+		static boolean[] requiredFeatures(Instances header, BitSet used, boolean[] enabled) {
+			if (used == null || enabled == null) {
+				return null;
+			}
+			boolean[] required = new boolean[FeatureStack.availableFeatures.length];
+			for (int a = used.nextSetBit(0); a >= 0; a = used.nextSetBit(a + 1)) {
+				if (a >= header.numAttributes()) {
+					return null;
+				}
+				String name = header.attribute(a).name();
+				if (a == header.classIndex() || name.equals("original")) {
+					continue;
+				}
+				int type = featureType(name);
+				if (type < 0 || type >= enabled.length || !enabled[type]) {
+					return null;
+				}
+				required[type] = true;
+			}
+			return required;
+		}
+
+		// INDEX INTO FeatureStack.availableFeatures OF THE TYPE AN ATTRIBUTE OR SLICE LABEL BELONGS TO, -1 FOR NONE
+		static int featureType(String name) {
+			String[] names = FeatureStack.availableFeatures;
+			int type = -1;
+			for (int k = 0; k < names.length; k++) {
+				if (name.startsWith(names[k]) && (type < 0 || names[k].length() > names[type].length())) {
+					type = k;
+				}
+			}
+			return type;
+		}
+
+		// A FRESH SEGMENTOR PER CALL IS CHEAP, ONLY THE SHARED CLASSIFIER IS EXPENSIVE
+		WekaSegmentation segmentor(ImagePlus image) {
+			WekaSegmentation segmentor = new WekaSegmentation(image);
+			segmentor.adjustSegmentationStateToData(header);
+			segmentor.setClassifier(classifier);
+			segmentor.setTrainHeader(header);
+			return segmentor;
+		}
+
+		ImagePlus apply(ImagePlus image, int threads) {
+			return apply(image, threads, null);
+		}
+
+		// WITH only, THE PRUNED PATH CLASSIFIES JUST THE MASKED PIXELS (THE OTHERS ARE LEFT AT CLASS 0)
+		ImagePlus apply(ImagePlus image, int threads, BitMask only) {
+			if (features != null) {
+				ImagePlus result = applyPruned(image, threads, only);
+				if (result != null) {
+					return result;
+				}
+			}
+			return segmentor(image).applyClassifier(image, threads, false);
+		}
+
+		// ONE FLOAT PLANE PER CLASS
+		float[][] probabilities(ImagePlus image, int threads) {
+			final int numClasses = header.numClasses();
+			final float[][] probabilities = new float[numClasses][];
+			final float[][] planes = features != null ? prunedPlanes(image, threads) : null;
+			if (planes == null) {
+				ImageStack maps = segmentor(image).applyClassifier(image, threads, true).getStack();
+				for (int c = 0; c < numClasses; c++) {
+					probabilities[c] = (float[])maps.getProcessor(c + 1).convertToFloat().getPixels();
+				}
+				return probabilities;
+			}
+			final int width = image.getWidth();
+			for (int c = 0; c < numClasses; c++) {
+				probabilities[c] = new float[width * image.getHeight()];
+			}
+			RowBands.run(image.getHeight(), threads, new RowBands.Body() {
+				@Override
+				public void rows(int y0, int y1) {
+					double[] values = new double[header.numAttributes()];
+					DenseInstance instance = instance(values);
+					try {
+						for (int i = y0 * width, end = y1 * width; i < end; i++) {
+							for (int a : usedAttributes) {
+								values[a] = planes[a][i];
+							}
+							double[] distribution = classifier.distributionForInstance(instance);
+							for (int c = 0; c < numClasses; c++) {
+								probabilities[c][i] = (float)distribution[c];
+							}
+						}
+					} catch (Exception e) {
+						throw new IllegalStateException("Could not classify " + path, e);
+					}
+				}
+			});
+			return probabilities;
+		}
+
+		// BUILD ONLY THE FEATURE TYPES THE MODEL READS AND CLASSIFY EACH PIXEL FROM THE USED ATTRIBUTES.
+		// THE OTHER ATTRIBUTES STAY 0: NO SPLIT TESTS THEM, SO THE PREDICTION IS THE SAME AS WITH THE
+		// FULL STACK. NULL IF THE STACK DOES NOT NAME EVERY USED ATTRIBUTE
+		private ImagePlus applyPruned(ImagePlus image, int threads, final BitMask only) {
+			final float[][] planes = prunedPlanes(image, threads);
+			if (planes == null) {
+				return null;
+			}
+			final int width = image.getWidth();
+			final byte[] classes = new byte[width * image.getHeight()];
+			RowBands.run(image.getHeight(), threads, new RowBands.Body() {
+				@Override
+				public void rows(int y0, int y1) {
+					double[] values = new double[header.numAttributes()];
+					DenseInstance instance = instance(values);
+					try {
+						for (int i = y0 * width, end = y1 * width; i < end; i++) {
+							if (only != null && !only.get(i)) {
+								continue;
+							}
+							for (int a : usedAttributes) {
+								values[a] = planes[a][i];
+							}
+							classes[i] = (byte)classifier.classifyInstance(instance);
+						}
+					} catch (Exception e) {
+						throw new IllegalStateException("Could not classify " + path, e);
+					}
+				}
+			});
+			ImagePlus result = new ImagePlus("Classification result", new ByteProcessor(width, image.getHeight(), classes));
+			result.setCalibration(image.getCalibration());
+			return result;
+		}
+
+		// THE INSTANCE KEEPS A REFERENCE TO values, SO REFILLING IT MOVES THE INSTANCE TO THE NEXT PIXEL
+		private DenseInstance instance(double[] values) {
+			values[header.classIndex()] = Utils.missingValue();
+			DenseInstance instance = new DenseInstance(1.0, values);
+			instance.setDataset(new Instances(header, 0));
+			return instance;
+		}
+
+		// FEATURE PLANES BY HEADER ATTRIBUTE INDEX, ONLY THOSE OF THE ENABLED TYPES,
+		// OR NULL IF THE STACK DOES NOT NAME EVERY USED ATTRIBUTE.
+		// WITH A DISK CACHE EACH FEATURE TYPE IS STORED UNDER THE IMAGE CONTENT AND THE FEATURE SETTINGS,
+		// SO A NEW MODEL ON THE SAME IMAGES ONLY COMPUTES THE TYPES NO EARLIER MODEL NEEDED
+		private float[][] prunedPlanes(ImagePlus image, int threads) {
+			float[][] planes = new float[header.numAttributes()][];
+			boolean[] compute = features.clone();
+			String content = disk != null ? DiskCache.content(image.getProcessor()) : null;
+			boolean missing = false;
+			for (int k = 0; k < compute.length; k++) {
+				DiskCache.Entry cached = compute[k] && disk != null ? disk.get(featureKey(content, k)) : null;
+				if (cached != null && isFeatureEntry(cached, image)) {
+					for (int i = 0; i < cached.planes.length; i++) {
+						setPlane(planes, cached.labels[i], (float[])cached.planes[i]);
+					}
+					compute[k] = false;
+				}
+				missing |= compute[k];
+			}
+
+			if (missing) {
+				FeatureStack stack = new FeatureStack(image);
+				stack.setEnabledFeatures(compute);
+				stack.setMinimumSigma(minimumSigma);
+				stack.setMaximumSigma(maximumSigma);
+				stack.setMembraneSize(membraneThickness);
+				stack.setMembranePatchSize(membranePatchSize);
+				stack.setUseNeighbors(false);
+				if (!(threads == 1 ? stack.updateFeaturesST() : stack.updateFeaturesMT())) {
+					throw new IllegalStateException("Could not compute the features of " + image.getTitle());
+				}
+				ImageStack slices = stack.getStack();
+				Map<Integer, List<Integer>> byType = new HashMap<Integer, List<Integer>>();
+				for (int k = 1; k <= stack.getSize(); k++) {
+					String label = stack.getSliceLabel(k);
+					setPlane(planes, label, (float[])slices.getProcessor(k).convertToFloat().getPixels());
+					int type = featureType(label);
+					if (type >= 0 && compute[type]) {
+						if (!byType.containsKey(type)) {
+							byType.put(type, new ArrayList<Integer>());
+						}
+						byType.get(type).add(k);
+					}
+				}
+				if (disk != null) {
+					for (Map.Entry<Integer, List<Integer>> type : byType.entrySet()) {
+						List<Integer> slicesOfType = type.getValue();
+						ImageProcessor[] processors = new ImageProcessor[slicesOfType.size()];
+						for (int i = 0; i < processors.length; i++) {
+							processors[i] = slices.getProcessor(slicesOfType.get(i)).convertToFloat();
+						}
+						DiskCache.Entry entry = DiskCache.entry("", processors);
+						for (int i = 0; i < processors.length; i++) {
+							entry.labels[i] = stack.getSliceLabel(slicesOfType.get(i));
+						}
+						disk.put(featureKey(content, type.getKey()), entry);
+					}
+				}
+			}
+			// THE ORIGINAL IMAGE AS A FEATURE, FOR WHEN EVERY TYPE CAME FROM THE CACHE
+			setPlane(planes, "original", (float[])image.getProcessor().convertToFloat().getPixels());
+
+			for (int a : usedAttributes) {
+				if (planes[a] == null) {
+					return null;
+				}
+			}
+			return planes;
+		}
+
+		// ONLY FILLS PLANES OF HEADER ATTRIBUTES THAT ARE STILL EMPTY
+		// FLOAT PLANES OF THE IMAGE'S SIZE; ANYTHING ELSE IS RECOMPUTED
+		private static boolean isFeatureEntry(DiskCache.Entry entry, ImagePlus image) {
+			if (entry.width != image.getWidth() || entry.height != image.getHeight()) {
+				return false;
+			}
+			for (Object plane : entry.planes) {
+				if (!(plane instanceof float[])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void setPlane(float[][] planes, String label, float[] pixels) {
+			Attribute attribute = header.attribute(label);
+			if (attribute != null && planes[attribute.index()] == null) {
+				planes[attribute.index()] = pixels;
+			}
+		}
+
+		private String featureKey(String content, int type) {
+			return DiskCache.key("features", content, FeatureStack.availableFeatures[type],
+					minimumSigma, maximumSigma, membraneThickness, membranePatchSize);
+		}
+
+		// FEATURE STACK (ONE FLOAT PLANE PER ATTRIBUTE IT BUILDS) PLUS THE SAME AGAIN FOR INSTANCES AND FILTER BUFFERS
+		int estimateMB(int width, int height) {
+			long bytes = 2L * width * height * 4L * featurePlanes();
+			return (int)Math.min(Integer.MAX_VALUE, (bytes >> 20) + 1);
+		}
+
+		// ATTRIBUTES THAT COME FROM THE ORIGINAL IMAGE OR A FEATURE TYPE THAT IS BUILT
+		int featurePlanes() {
+			if (features == null) {
+				return header.numAttributes();
+			}
+			int planes = 0;
+			for (int a = 0; a < header.numAttributes(); a++) {
+				String name = header.attribute(a).name();
+				int type = featureType(name);
+				if (name.equals("original") || (type >= 0 && features[type])) {
+					planes++;
+				}
+			}
+			return planes;
+		}
+
+		// FEATURES WHOSE REACH IS NOT BOUNDED BY THE SIGMAS AND THE MEMBRANE PATCH: ITERATED DIFFUSION,
+		// THE LIPSCHITZ CONE, AND FILTERS WITH THEIR OWN KERNEL SIZES OR NEIGHBOUR OFFSETS
+		static final String[] UNBOUNDED_FEATURES = { "Anisotropic_diffusion", "Lipschitz", "Gabor", "Kuwahara", "Bilateral", "Neighbors" };
+
+		// REACH OF THE WIDEST FEATURE FILTER: GAUSSIAN-BASED FEATURES OF THE LARGEST SIGMA
+		// (DERIVATIVES AND STRUCTURE TENSORS STACK TWO OF THEM) AND THE MEMBRANE PATCH.
+		// -1 WHEN A BUILT FEATURE REACHES FURTHER, AND THE IMAGE MUST BE CLASSIFIED WHOLE
+		int margin(ImagePlus image) {
+			boolean[] built = features != null ? features : enabledFeatures;
+			if (built == null || useNeighbors) {
+				return -1;
+			}
+			for (String name : UNBOUNDED_FEATURES) {
+				int type = featureType(name);
+				if (type >= 0 && type < built.length && built[type]) {
+					return -1;
+				}
+			}
+			WekaSegmentation segmentor = segmentor(image);
+			return (int)Math.ceil(8 * segmentor.getMaximumSigma()) + segmentor.getMembranePatchSize();
+		}
+	}
+
+
+	// SAME RESULT AS "Auto Local Threshold" (method=Bernsen, white objects) FOLLOWED BY "Watershed".
+	// THE 8-BIT IMAGE IS CONVERTED ONCE AND THE LOCAL MIN/MAX ARE KEPT FOR THE LAST RADIUS,
+	// SO CHANGING ONLY THE CONTRAST THRESHOLD REDOES ONLY THE COMPARISON AND THE WATERSHED.
+	static class BernsenThreshold {
+		private final ByteProcessor source;
+		private final Calibration calibration;
+		private final int threads;
+		private int cachedRadius = -1;
+		private byte[] localMin;
+		private byte[] localMax;
+
+		BernsenThreshold(ImagePlus mergedCells, int threads) {
+			ImagePlus gray = mergedCells.duplicate();
+			ImageConverter.setDoScaling(true);
+			new ImageConverter(gray).convertToGray8();
+			this.source = (ByteProcessor)gray.getProcessor();
+			this.calibration = mergedCells.getCalibration();
+			this.threads = threads;
+		}
+
+		ImagePlus apply(double threshold, double radius) {
+			// THE PLUGIN READS BOTH PARAMETERS AS INTEGERS, BUT ONLY A CONTRAST OF EXACTLY 0 MEANS THE DEFAULT OF 15
+			int r = (int)radius;
+			int contrastThreshold = threshold != 0 ? (int)threshold : 15;
+			if (r != cachedRadius) {
+				localMinMax(r);
+			}
+
+			final int width = source.getWidth();
+			final byte[] pixels = (byte[])source.getPixels();
+			final byte[] min = localMin;
+			final byte[] max = localMax;
+			final byte[] out = new byte[pixels.length];
+			final int contrast = contrastThreshold;
+			RowBands.run(source.getHeight(), threads, new RowBands.Body() {
+				@Override
+				public void rows(int y0, int y1) {
+					for (int i = y0 * width, end = y1 * width; i < end; i++) {
+						int lo = min[i] & 0xff;
+						int hi = max[i] & 0xff;
+						int midGray = (lo + hi) / 2;
+						if (hi - lo < contrast) {
+							// LOW CONTRAST REGION
+							out[i] = midGray >= 128 ? (byte)255 : 0;
+						} else {
+							out[i] = (pixels[i] & 0xff) >= midGray ? (byte)255 : 0;
+						}
+					}
+				}
+			});
+
+			ByteProcessor mask = new ByteProcessor(width, source.getHeight(), out);
+			watershed(mask);
+			ImagePlus cells = new ImagePlus("Cells", mask);
+			cells.setCalibration(calibration);
+			return cells;
+		}
+
+		// LOCAL MIN AND MAX OVER THE CIRCULAR KERNEL OF RankFilters. EACH KERNEL ROW IS A SEGMENT OF
+		// FIXED HALF-WIDTH, WHOSE MIN/MAX ALONG A WHOLE IMAGE ROW COSTS O(1) PER PIXEL (van Herk / Gil-Werman)
+		private void localMinMax(final int radius) {
+			final int width = source.getWidth();
+			final int height = source.getHeight();
+			final byte[] pixels = (byte[])source.getPixels();
+			final int[] halfWidths = kernelHalfWidths(radius);
+			final int kRadius = (halfWidths.length - 1) / 2;
+			final byte[] min = new byte[pixels.length];
+			final byte[] max = new byte[pixels.length];
+			RowBands.run(height, threads, new RowBands.Body() {
+				@Override
+				public void rows(int y0, int y1) {
+					int[] rowMin = new int[width];
+					int[] rowMax = new int[width];
+					int[] segMin = new int[width];
+					int[] segMax = new int[width];
+					int[] scratch = new int[4 * width];
+					for (int y = y0; y < y1; y++) {
+						Arrays.fill(rowMin, 255);
+						Arrays.fill(rowMax, 0);
+						for (int dy = -kRadius; dy <= kRadius; dy++) {
+							int sy = y + dy;
+							// OUTSIDE THE IMAGE RankFilters REPEATS THE EDGE, WHICH NEVER CHANGES A MIN OR MAX
+							if (sy < 0 || sy >= height) {
+								continue;
+							}
+							segmentMinMax(pixels, sy * width, width, halfWidths[dy + kRadius], segMin, segMax, scratch);
+							for (int x = 0; x < width; x++) {
+								if (segMin[x] < rowMin[x]) rowMin[x] = segMin[x];
+								if (segMax[x] > rowMax[x]) rowMax[x] = segMax[x];
+							}
+						}
+						for (int x = 0, i = y * width; x < width; x++, i++) {
+							min[i] = (byte)rowMin[x];
+							max[i] = (byte)rowMax[x];
+						}
+					}
+				}
+			});
+			localMin = min;
+			localMax = max;
+			cachedRadius = radius;
+		}
+
+		// HALF-WIDTH OF EACH KERNEL ROW, AS IN RankFilters.makeLineRadii()
+		static int[] kernelHalfWidths(double radius) {
+			if (radius >= 1.5 && radius < 1.75) {
+				radius = 1.75;
+			} else if (radius >= 2.5 && radius < 2.85) {
+				radius = 2.85;
+			}
+			int r2 = (int)(radius * radius) + 1;
+			int kRadius = (int)Math.sqrt(r2 + 1e-10);
+			int[] halfWidths = new int[2 * kRadius + 1];
+			for (int dy = -kRadius; dy <= kRadius; dy++) {
+				halfWidths[dy + kRadius] = (int)Math.sqrt(r2 - dy * dy + 1e-10);
+			}
+			return halfWidths;
+		}
+
+		// MIN/MAX OF row[x-w .. x+w] (CLIPPED TO THE ROW) FOR EVERY x, FROM BLOCK PREFIX AND SUFFIX EXTREMES
+		static void segmentMinMax(byte[] pixels, int offset, int width, int w, int[] segMin, int[] segMax, int[] scratch) {
+			int k = 2 * w + 1;
+			int prefixMin = 0, prefixMax = width, suffixMin = 2 * width, suffixMax = 3 * width;
+			for (int x = 0; x < width; x++) {
+				int v = pixels[offset + x] & 0xff;
+				if (x % k == 0) {
+					scratch[prefixMin + x] = v;
+					scratch[prefixMax + x] = v;
+				} else {
+					scratch[prefixMin + x] = Math.min(scratch[prefixMin + x - 1], v);
+					scratch[prefixMax + x] = Math.max(scratch[prefixMax + x - 1], v);
+				}
+			}
+			for (int x = width - 1; x >= 0; x--) {
+				int v = pixels[offset + x] & 0xff;
+				if (x == width - 1 || (x + 1) % k == 0) {
+					scratch[suffixMin + x] = v;
+					scratch[suffixMax + x] = v;
+				} else {
+					scratch[suffixMin + x] = Math.min(scratch[suffixMin + x + 1], v);
+					scratch[suffixMax + x] = Math.max(scratch[suffixMax + x + 1], v);
+				}
+			}
+			int lastBlock = ((width - 1) / k) * k;
+			int runMin = 256, runMax = -1;
+			for (int x = 0; x < width; x++) {
+				int a = x - w;
+				int b = x + w;
+				if (a <= 0 && b >= width - 1) {
+					// WINDOW COVERS THE WHOLE ROW
+					if (runMin > runMax) {
+						runMin = 255;
+						runMax = 0;
+						for (int i = 0; i < width; i++) {
+							int v = pixels[offset + i] & 0xff;
+							if (v < runMin) runMin = v;
+							if (v > runMax) runMax = v;
+						}
+					}
+					segMin[x] = runMin;
+					segMax[x] = runMax;
+				} else if (a <= 0) {
+					// CLIPPED ON THE LEFT: [0, b] LIES IN THE FIRST BLOCK
+					segMin[x] = scratch[prefixMin + b];
+					segMax[x] = scratch[prefixMax + b];
+				} else if (b >= width - 1) {
+					// CLIPPED ON THE RIGHT: [a, width-1] ENDS IN THE LAST (POSSIBLY SHORT) BLOCK
+					if (a >= lastBlock) {
+						segMin[x] = scratch[suffixMin + a];
+						segMax[x] = scratch[suffixMax + a];
+					} else {
+						segMin[x] = Math.min(scratch[suffixMin + a], scratch[prefixMin + width - 1]);
+						segMax[x] = Math.max(scratch[suffixMax + a], scratch[prefixMax + width - 1]);
+					}
+				} else {
+					segMin[x] = Math.min(scratch[suffixMin + a], scratch[prefixMin + b]);
+					segMax[x] = Math.max(scratch[suffixMax + a], scratch[prefixMax + b]);
+				}
+			}
+		}
+
+		// "Watershed" SEPARATES THE FOREGROUND OF THE BINARY IMAGE, WHICH DEPENDS ON THE LUT AND "BLACK BACKGROUND"
+		static void watershed(ByteProcessor mask) {
+			boolean background255 = mask.isInvertedLut() == Prefs.blackBackground;
+			if (background255) {
+				mask.invert();
+			}
+			new EDM().toWatershed(mask);
+			if (background255) {
+				mask.invert();
+			}
+		}
+	}
+
+
+	// "Enhance Local Contrast (CLAHE)" blocksize=127 histogram=255 maximum=3 (THE EXACT, NOT THE FAST
+	// VARIANT) FOLLOWED BY "Remove Outliers..." radius=1 threshold=0 which=Bright, IN PARALLEL ROW BANDS.
+	// THE CLASSIFIERS WERE TRAINED ON WHAT THE IMAGEJ COMMANDS PRODUCE, SO THE FIRST IMAGE OF A SESSION
+	// GOES THROUGH BOTH; IF THEY DIFFER BEYOND THE TOLERANCE, THE COMMANDS ARE USED FROM THEN ON.
+	static class VesselPreprocessor {
+		// THE CLAHE PLUGIN TAKES (blocksize - 1) / 2 AND histogram - 1
+		static final int BLOCK_RADIUS = 63;
+		static final int BINS = 254;
+		static final float SLOPE = 3;
+		// LARGEST DIFFERENCE ALLOWED, AS A FRACTION OF THE RANGE OF THE IMAGEJ RESULT
+		static final double TOLERANCE = 1e-4;
+
+		private static final Object CHECK_LOCK = new Object();
+		// BY BIT DEPTH, WHETHER THE FIRST IMAGE OF THE RUN MATCHED THE COMMANDS; CLEARED BY startRun
+		private static final Map<Integer, Boolean> nativeMatches = new ConcurrentHashMap<Integer, Boolean>();
+
+		// THE NEXT IMAGE OF EACH BIT DEPTH IS COMPARED AGAIN, SO A NEW RUN OR PROFILE IS CHECKED ON ITS OWN DATA
+		static void startRun() {
+			nativeMatches.clear();
+		}
+
+		// IN PLACE
+		static void apply(ImagePlus imp, int threads) {
+			int bitDepth = imp.getBitDepth();
+			Boolean matches = nativeMatches.get(bitDepth);
+			boolean compared = false;
+			if (matches == null) {
+				synchronized (CHECK_LOCK) {
+					matches = nativeMatches.get(bitDepth);
+					if (matches == null) {
+						matches = compareWithCommands(imp, threads);
+						nativeMatches.put(bitDepth, matches);
+						compared = true;
+					}
+				}
+			}
+			// THE COMPARISON HAS ALREADY PREPROCESSED THE IMAGE IT RAN ON
+			if (!compared && matches) {
+				clahe(imp.getProcessor(), threads);
+				removeBrightOutliers(imp.getProcessor(), threads);
+			} else if (!compared) {
+				runCommands(imp);
+			}
+			imp.updateAndDraw();
+		}
+
+		static void runCommands(ImagePlus imp) {
+			IJ.run(imp, "Enhance Local Contrast (CLAHE)", "blocksize=127 histogram=255 maximum=3 mask=*None*");
+			IJ.run(imp, "Remove Outliers...", "radius=1 threshold=0 which=Bright");
+		}
+
+		// LEAVES imp PREPROCESSED EITHER WAY
+		private static boolean compareWithCommands(ImagePlus imp, int threads) {
+			ImagePlus reference = imp.duplicate();
+			runCommands(reference);
+			ImageProcessor ip = imp.getProcessor();
+			ImageProcessor ref = reference.getProcessor();
+			clahe(ip, threads);
+			removeBrightOutliers(ip, threads);
+
+			int n = ip.getWidth() * ip.getHeight();
+			float refMin = Float.MAX_VALUE;
+			float refMax = -Float.MAX_VALUE;
+			double maxDiff = 0;
+			for (int i = 0; i < n; i++) {
+				float r = ref.getf(i);
+				if (r < refMin) refMin = r;
+				if (r > refMax) refMax = r;
+				maxDiff = Math.max(maxDiff, Math.abs(ip.getf(i) - r));
+			}
+			double relative = refMax > refMin ? maxDiff / (refMax - refMin) : maxDiff;
+			if (relative <= TOLERANCE) {
+				return true;
+			}
+			IJ.log("Native vessel preprocessing differs from the ImageJ commands by " + IJ.d2s(relative * 100, 4)
+					+ "% of the range; using the ImageJ commands");
+			imp.setProcessor(ref);
+			return false;
+		}
+
+		// THE CLIPPED HISTOGRAM OF THE BLOCK AROUND EACH PIXEL IS SLID ALONG THE ROW, ONE COLUMN OUT AND
+		// ONE IN, AS IN mpicbg's Flat; ROWS ARE INDEPENDENT, SO EACH BAND OF ROWS RUNS ON ITS OWN THREAD
+		static void clahe(ImageProcessor ip, int threads) {
+			final int width = ip.getWidth();
+			final int height = ip.getHeight();
+			final int n = width * height;
+			final byte[] src = (byte[])(ip instanceof ByteProcessor ? ip : ip.convertToByte(true)).getPixels();
+			final int[] binOf = new int[256];
+			for (int v = 0; v < 256; v++) {
+				binOf[v] = (int)(v / 255.0f * BINS + 0.5f);
+			}
+			final short[] bin = new short[n];
+			for (int i = 0; i < n; i++) {
+				bin[i] = (short)binOf[src[i] & 0xff];
+			}
+			final byte[] dst = new byte[n];
+			RowBands.run(height, threads, new RowBands.Body() {
+				@Override
+				public void rows(int y0, int y1) {
+					int[] hist = new int[BINS + 1];
+					int[] clipped = new int[BINS + 1];
+					for (int y = y0; y < y1; y++) {
+						int yMin = Math.max(0, y - BLOCK_RADIUS);
+						int yMax = Math.min(height, y + BLOCK_RADIUS + 1);
+						int h = yMax - yMin;
+						int xMax0 = Math.min(width - 1, BLOCK_RADIUS);
+						Arrays.fill(hist, 0);
+						for (int yi = yMin; yi < yMax; yi++) {
+							for (int xi = 0; xi < xMax0; xi++) {
+								hist[bin[yi * width + xi]]++;
+							}
+						}
+						for (int x = 0; x < width; x++) {
+							int v = bin[y * width + x];
+							int xMin = Math.max(0, x - BLOCK_RADIUS);
+							int xMax = x + BLOCK_RADIUS + 1;
+							int w = Math.min(width, xMax) - xMin;
+							int limit = (int)(SLOPE * (h * w) / BINS + 0.5f);
+
+							// SLIDE THE BLOCK ONE COLUMN TO THE RIGHT
+							if (xMin > 0) {
+								for (int yi = yMin; yi < yMax; yi++) hist[bin[yi * width + xMin - 1]]--;
+							}
+							if (xMax <= width) {
+								for (int yi = yMin; yi < yMax; yi++) hist[bin[yi * width + xMax - 1]]++;
+							}
+
+							// CLIP AND REDISTRIBUTE UNTIL NOTHING MORE IS CLIPPED
+							System.arraycopy(hist, 0, clipped, 0, hist.length);
+							int clippedEntries = 0;
+							int clippedEntriesBefore;
+							do {
+								clippedEntriesBefore = clippedEntries;
+								clippedEntries = 0;
+								for (int i = 0; i <= BINS; i++) {
+									int d = clipped[i] - limit;
+									if (d > 0) {
+										clippedEntries += d;
+										clipped[i] = limit;
+									}
+								}
+								int d = clippedEntries / (BINS + 1);
+								int m = clippedEntries % (BINS + 1);
+								for (int i = 0; i <= BINS; i++) clipped[i] += d;
+								if (m != 0) {
+									int s = BINS / m;
+									for (int i = 0; i <= BINS; i += s) clipped[i]++;
+								}
+							} while (clippedEntries != clippedEntriesBefore);
+
+							// CDF OF THE CLIPPED HISTOGRAM AT v, FROM THE FIRST NON-EMPTY BIN
+							int hMin = BINS;
+							for (int i = 0; i < hMin; i++) {
+								if (clipped[i] != 0) hMin = i;
+							}
+							int cdf = 0;
+							for (int i = hMin; i <= v; i++) cdf += clipped[i];
+							int cdfMax = cdf;
+							for (int i = v + 1; i <= BINS; i++) cdfMax += clipped[i];
+							int cdfMin = clipped[hMin];
+							dst[y * width + x] = (byte)(int)((cdf - cdfMin) / (float)(cdfMax - cdfMin) * 255.0f + 0.5f);
+						}
+					}
+				}
+			});
+
+			// 8-BIT IMAGES TAKE THE RESULT AS IS; DEEPER ONES ARE SHIFTED BY THE 8-BIT CHANGE, SCALED TO THEIR RANGE
+			if (ip instanceof ByteProcessor) {
+				System.arraycopy(dst, 0, (byte[])ip.getPixels(), 0, n);
+			} else {
+				float scale = (float)(ip.getMax() - ip.getMin()) / 255.0f;
+				for (int i = 0; i < n; i++) {
+					ip.setf(i, ip.getf(i) + ((dst[i] & 0xff) - (src[i] & 0xff)) * scale);
+				}
+			}
+		}
+
+		// A PIXEL BRIGHTER THAN THE MEDIAN OF ITS 3x3 NEIGHBOURHOOD (THE RADIUS 1 KERNEL OF RankFilters,
+		// EDGES REPEATED) IS REPLACED BY THAT MEDIAN
+		static void removeBrightOutliers(final ImageProcessor ip, int threads) {
+			final int width = ip.getWidth();
+			final int height = ip.getHeight();
+			final float[] in = new float[width * height];
+			for (int i = 0; i < in.length; i++) {
+				in[i] = ip.getf(i);
+			}
+			RowBands.run(height, threads, new RowBands.Body() {
+				@Override
+				public void rows(int y0, int y1) {
+					float[] window = new float[9];
+					for (int y = y0; y < y1; y++) {
+						int up = Math.max(0, y - 1) * width;
+						int row = y * width;
+						int down = Math.min(height - 1, y + 1) * width;
+						for (int x = 0; x < width; x++) {
+							int left = Math.max(0, x - 1);
+							int right = Math.min(width - 1, x + 1);
+							window[0] = in[up + left]; window[1] = in[up + x]; window[2] = in[up + right];
+							window[3] = in[row + left]; window[4] = in[row + x]; window[5] = in[row + right];
+							window[6] = in[down + left]; window[7] = in[down + x]; window[8] = in[down + right];
+							float v = in[row + x];
+							// v IS ABOVE THE MEDIAN ONLY IF AT LEAST FIVE OF THE NINE VALUES ARE BELOW IT
+							int below = 0;
+							for (int k = 0; k < 9; k++) {
+								if (window[k] < v) below++;
+							}
+							if (below >= 5) {
+								ip.setf(row + x, median9(window));
+							}
+						}
+					}
+				}
+			});
+		}
+
+		private static float median9(float[] values) {
+			for (int i = 1; i < 9; i++) {
+				float v = values[i];
+				int j = i - 1;
+				while (j >= 0 && values[j] > v) {
+					values[j + 1] = values[j];
+					j--;
+				}
+				values[j + 1] = v;
+			}
+			return values[4];
+		}
+	}
+
+
+	// SPLITS THE ROWS OF AN IMAGE INTO CONTIGUOUS BANDS AND PROCESSES THEM ON A SHARED POOL
+	static class RowBands {
+		interface Body {
+			void rows(int y0, int y1);
+		}
+
+		// SHARED BY EVERY CALL IN THE PROCESS, SO THE HOT PATH NEVER STARTS A THREAD
+		private static final ExecutorService POOL = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "VessCoopJ-band-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		// THE CALLER RUNS THE FIRST BAND AND ANY BAND THE POOL HAS NOT STARTED YET, SO A CALL MADE
+		// WHILE THE POOL IS BUSY (OR FROM INSIDE A BAND) NEVER WAITS ON QUEUED WORK
+		static void run(int height, int threads, final Body body) {
+			int bands = Math.max(1, Math.min(threads, height));
+			if (bands == 1) {
+				body.rows(0, height);
+				return;
+			}
+			List<FutureTask<Void>> queued = new ArrayList<FutureTask<Void>>();
+			for (int b = 1; b < bands; b++) {
+				final int y0 = (int)((long)height * b / bands);
+				final int y1 = (int)((long)height * (b + 1) / bands);
+				FutureTask<Void> band = new FutureTask<Void>(new Runnable() {
+					@Override
+					public void run() {
+						body.rows(y0, y1);
+					}
+				}, null);
+				queued.add(band);
+				POOL.execute(band);
+			}
+			Throwable failure = null;
+			try {
+				body.rows(0, (int)((long)height / bands));
+			} catch (Throwable t) {
+				failure = t;
+			}
+			boolean interrupted = false;
+			for (FutureTask<Void> band : queued) {
+				// A NO-OP WHEN A POOL THREAD HAS ALREADY TAKEN THE BAND
+				band.run();
+				while (true) {
+					try {
+						band.get();
+						break;
+					} catch (InterruptedException e) {
+						interrupted = true;
+					} catch (ExecutionException e) {
+						if (failure == null) {
+							failure = e.getCause();
+						}
+						break;
+					}
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException)failure;
+			} else if (failure instanceof Error) {
+				throw (Error)failure;
+			} else if (failure != null) {
+				throw new IllegalStateException(failure);
+			}
+		}
+	}
+
+
+	// BINARY IMAGE PACKED 64 PIXELS TO A WORD, IN RASTER ORDER (PIXEL i IS BIT i % 64 OF WORD i / 64).
+	// AND/OR/NOT WORK ON WHOLE WORDS AND AREAS ARE POPCOUNTS; A BYTE IMAGE IS ONLY MADE TO BE SAVED.
+	static class BitMask {
+		final int width;
+		final int height;
+		final long[] words;
+
+		BitMask(int width, int height) {
+			this.width = width;
+			this.height = height;
+			this.words = new long[(int)(((long)width * height + 63) >>> 6)];
+		}
+
+		// PIXELS OF A CLASSIFIER RESULT THAT HOLD THE GIVEN CLASS INDEX
+		static BitMask ofClass(ImageProcessor classes, int classIndex) {
+			BitMask mask = new BitMask(classes.getWidth(), classes.getHeight());
+			Object pixels = classes.getPixels();
+			int n = classes.getWidth() * classes.getHeight();
+			if (pixels instanceof byte[]) {
+				byte[] p = (byte[])pixels;
+				for (int i = 0; i < n; i++) {
+					if ((p[i] & 0xff) == classIndex) mask.words[i >>> 6] |= 1L << i;
+				}
+			} else {
+				for (int i = 0; i < n; i++) {
+					if (classes.getf(i) == classIndex) mask.words[i >>> 6] |= 1L << i;
+				}
+			}
+			return mask;
+		}
+
+		// NON-ZERO PIXELS OF A BINARY IMAGE
+		static BitMask ofForeground(ImageProcessor binary) {
+			BitMask mask = new BitMask(binary.getWidth(), binary.getHeight());
+			byte[] p = (byte[])binary.getPixels();
+			for (int i = 0; i < p.length; i++) {
+				if (p[i] != 0) mask.words[i >>> 6] |= 1L << i;
+			}
+			return mask;
+		}
+
+		boolean get(int i) {
+			return (words[i >>> 6] & (1L << i)) != 0;
+		}
+
+		void set(int i) {
+			words[i >>> 6] |= 1L << i;
+		}
+
+		BitMask and(BitMask other) {
+			BitMask result = new BitMask(width, height);
+			for (int w = 0; w < words.length; w++) result.words[w] = words[w] & other.words[w];
+			return result;
+		}
+
+		BitMask or(BitMask other) {
+			BitMask result = new BitMask(width, height);
+			for (int w = 0; w < words.length; w++) result.words[w] = words[w] | other.words[w];
+			return result;
+		}
+
+		BitMask not() {
+			BitMask result = new BitMask(width, height);
+			for (int w = 0; w < words.length; w++) result.words[w] = ~words[w];
+			// BITS PAST THE LAST PIXEL STAY CLEAR, SO COUNTS REMAIN EXACT
+			int tail = (int)(((long)width * height) & 63);
+			if (tail != 0) {
+				result.words[words.length - 1] &= -1L >>> (64 - tail);
+			}
+			return result;
+		}
+
+		long count() {
+			long n = 0;
+			for (long w : words) n += Long.bitCount(w);
+			return n;
+		}
+
+		// SET PIXELS i WITH from <= i < to
+		int count(int from, int to) {
+			if (from >= to) {
+				return 0;
+			}
+			int first = from >>> 6;
+			int last = (to - 1) >>> 6;
+			long firstMask = -1L << from;
+			long lastMask = -1L >>> (63 - ((to - 1) & 63));
+			if (first == last) {
+				return Long.bitCount(words[first] & firstMask & lastMask);
+			}
+			int n = Long.bitCount(words[first] & firstMask) + Long.bitCount(words[last] & lastMask);
+			for (int w = first + 1; w < last; w++) n += Long.bitCount(words[w]);
+			return n;
+		}
+
+		// 255 ON THE MASK, WITH THE LUT "Convert to Mask" WOULD GIVE
+		ByteProcessor toByteProcessor() {
+			byte[] p = new byte[width * height];
+			for (int i = 0; i < p.length; i++) {
+				if ((words[i >>> 6] & (1L << i)) != 0) p[i] = (byte)255;
+			}
+			ByteProcessor ip = new ByteProcessor(width, height, p);
+			if (!Prefs.blackBackground) {
+				ip.invertLut();
+			}
+			return ip;
+		}
+	}
+
+
+	// VOXEL COUNTS OF EVERY CELL AND OF ITS OVERLAP WITH THE VESSELS, BUILT ONE SLAB OF SLICES AT A TIME.
+	// A VOXEL BELONGS TO A CELL WHERE THE CELL'S 2D LABEL COVERS IT AND ITS MERGED CELL INTENSITY IS AT LEAST
+	// HALF OF THAT PIXEL'S MAXIMUM OVER Z. THE VESSEL CLASSIFIER WAS TRAINED ON SUM PROJECTIONS, SO EACH
+	// SLAB'S VESSELS ARE CLASSIFIED FROM THE SUM OF ITS SLICES AND HOLD FOR ALL OF THEM. BESIDES THE LABEL
+	// MAP, ONLY ONE SUM PLANE AND ONE BIT PER PIXEL OF EACH SLICE IN THE SLAB ARE KEPT, WHATEVER THE DEPTH.
+	static class VolumeOverlap {
+		final long[] voxels;
+		final long[] overlap;
+		private final int width;
+		private final int height;
+		private final int[] labels;
+		private final float[] halfMax;
+		private final BitMask[] slab;
+		private float[] vesselSum;
+		private int slices;
+
+		VolumeOverlap(CellLabels cells, ImageProcessor cellMax1, ImageProcessor cellMax2, int slabDepth) {
+			this.width = cells.width;
+			this.height = cells.height;
+			this.labels = cells.labels;
+			this.voxels = new long[cells.count];
+			this.overlap = new long[cells.count];
+			int n = width * height;
+			this.halfMax = new float[n];
+			for (int i = 0; i < n; i++) {
+				halfMax[i] = 0.5f * Math.max(cellMax1.getf(i), cellMax2.getf(i));
+			}
+			this.slab = new BitMask[Math.max(1, slabDepth)];
+			this.vesselSum = new float[n];
+		}
+
+		// FOLD IN THE NEXT SLICE; TRUE WHEN THE SLAB IS FULL AND ITS VESSELS ARE NEEDED
+		boolean add(ImageProcessor vesselPlane, ImageProcessor cellPlane1, ImageProcessor cellPlane2) {
+			if (slab[slices] == null) {
+				slab[slices] = new BitMask(width, height);
+			} else {
+				Arrays.fill(slab[slices].words, 0L);
+			}
+			BitMask cells = slab[slices];
+			float[] sum = vesselSum;
+			int n = sum.length;
+			for (int i = 0; i < n; i++) {
+				sum[i] += vesselPlane.getf(i);
+				if (labels[i] != 0 && Math.max(cellPlane1.getf(i), cellPlane2.getf(i)) >= halfMax[i]) {
+					cells.set(i);
+				}
+			}
+			slices++;
+			return slices == slab.length;
+		}
+
+		// THE VESSEL SUM OF THE SLICES ADDED SINCE THE LAST closeSlab; THE CALLER MAY CHANGE IT
+		FloatProcessor slabSum() {
+			return new FloatProcessor(width, height, vesselSum);
+		}
+
+		// COUNT THE SLAB'S CELL VOXELS, AND THOSE IN vessels, AND START THE NEXT SLAB
+		void closeSlab(BitMask vessels) {
+			for (int s = 0; s < slices; s++) {
+				long[] words = slab[s].words;
+				for (int w = 0; w < words.length; w++) {
+					long bits = words[w];
+					while (bits != 0) {
+						int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+						bits &= bits - 1;
+						int cell = labels[i] - 1;
+						voxels[cell]++;
+						if (vessels.get(i)) {
+							overlap[cell]++;
+						}
+					}
+				}
+			}
+			slices = 0;
+			vesselSum = new float[width * height];
+		}
+	}
+
+
+	// CELLS AS 8-CONNECTED PARTICLES OF A BINARY IMAGE, WITH THE RULES OF "Analyze Particles...
+	// size=min-Infinity pixel exclude": PARTICLES SMALLER THAN MIN SIZE OR TOUCHING THE EDGE ARE
+	// DROPPED, AND CELLS ARE NUMBERED IN THE ORDER THE ANALYZER FINDS THEM. LIKE THE TRACED ROIS,
+	// A CELL COVERS ITS HOLES (BUT NOT PARTICLES INSIDE THEM). NO ROI MANAGER, NO SHARED STATE.
+	static class CellLabels {
+		final int width;
+		final int height;
+		// 0 IS BACKGROUND, i+1 IS CELL i
+		final int[] labels;
+		final int count;
+		// PIXELS, HOLES INCLUDED
+		final long[] area;
+		final Rectangle[] bounds;
+		// MAXIMUM CALIPER OF THE TRACED OUTLINE, IN PIXELS
+		final double[] feret;
+		// TOPMOST-LEFTMOST PIXEL, WHERE THE OUTLINE IS TRACED FROM
+		final int[] firstPixel;
+		private final ImageProcessor binary;
+		private final int foreground;
+
+		private CellLabels(ImageProcessor binary, int foreground, int[] labels, int count) {
+			this.width = binary.getWidth();
+			this.height = binary.getHeight();
+			this.binary = binary;
+			this.foreground = foreground;
+			this.labels = labels;
+			this.count = count;
+			this.area = new long[count];
+			this.bounds = new Rectangle[count];
+			this.feret = new double[count];
+			this.firstPixel = new int[count];
+		}
+
+		static CellLabels label(ImageProcessor binary, int minSize, boolean excludeEdges, int threads) {
+			final int width = binary.getWidth();
+			final int height = binary.getHeight();
+			final byte[] pixels = (byte[])binary.getPixels();
+			// THE LEVEL "Analyze Particles" ANALYZES ON AN UNTHRESHOLDED BINARY IMAGE
+			int foreground = binary.isInvertedLut() != Prefs.blackBackground ? 255 : 0;
+			final byte fg = (byte)foreground;
+
+			// UNION-FIND OVER PIXEL INDEXES. A ROOT IS ALWAYS THE SMALLEST INDEX OF ITS SET, SO IT IS
+			// THE FIRST PIXEL OF THE PARTICLE IN RASTER ORDER. EACH BAND ONLY LINKS PIXELS INSIDE ITSELF.
+			final int[] parent = new int[pixels.length];
+			final List<Integer> bandStarts = new ArrayList<Integer>();
+			RowBands.run(height, threads, new RowBands.Body() {
+				@Override
+				public void rows(int y0, int y1) {
+					synchronized (bandStarts) {
+						bandStarts.add(y0);
+					}
+					for (int y = y0; y < y1; y++) {
+						for (int x = 0, i = y * width; x < width; x++, i++) {
+							if (pixels[i] != fg) {
+								continue;
+							}
+							parent[i] = i;
+							if (x > 0 && pixels[i - 1] == fg) union(parent, i, i - 1);
+							if (y > y0) {
+								linkAbove(pixels, fg, parent, width, x, i);
+							}
+						}
+					}
+				}
+			});
+
+			// STITCH THE BANDS ALONG THEIR FIRST ROWS
+			for (int y0 : bandStarts) {
+				if (y0 == 0) {
+					continue;
+				}
+				for (int x = 0, i = y0 * width; x < width; x++, i++) {
+					if (pixels[i] == fg) linkAbove(pixels, fg, parent, width, x, i);
+				}
+			}
+
+			// POINT EVERY PIXEL STRAIGHT AT ITS ROOT. A CONCURRENT READER SEES EITHER THE OLD PARENT
+			// OR THE ROOT, AND BOTH LEAD TO THE SAME ROOT
+			RowBands.run(height, threads, new RowBands.Body() {
+				@Override
+				public void rows(int y0, int y1) {
+					for (int i = y0 * width, end = y1 * width; i < end; i++) {
+						if (pixels[i] == fg) parent[i] = find(parent, i);
+					}
+				}
+			});
+
+			// NUMBER THE PARTICLES AT THEIR ROOTS AND TAKE AREA AND BOUNDS IN THE SAME PASS; A ROOT
+			// COMES BEFORE THE REST OF ITS PARTICLE, SO IT IS ALWAYS NUMBERED WHEN IT IS LOOKED UP
+			final int[] number = new int[pixels.length];
+			int particles = 0;
+			int capacity = 1024;
+			long[] size = new long[capacity];
+			int[] minX = new int[capacity];
+			int[] minY = new int[capacity];
+			int[] maxX = new int[capacity];
+			int[] maxY = new int[capacity];
+			for (int y = 0, i = 0; y < height; y++) {
+				for (int x = 0; x < width; x++, i++) {
+					if (pixels[i] != fg) {
+						continue;
+					}
+					int p;
+					if (parent[i] == i) {
+						p = ++particles;
+						if (p == capacity) {
+							capacity *= 2;
+							size = Arrays.copyOf(size, capacity);
+							minX = Arrays.copyOf(minX, capacity);
+							minY = Arrays.copyOf(minY, capacity);
+							maxX = Arrays.copyOf(maxX, capacity);
+							maxY = Arrays.copyOf(maxY, capacity);
+						}
+						number[i] = p;
+						minX[p] = x;
+						minY[p] = y;
+						maxX[p] = x;
+						maxY[p] = y;
+					} else {
+						p = number[parent[i]];
+						if (x < minX[p]) minX[p] = x;
+						if (x > maxX[p]) maxX[p] = x;
+						maxY[p] = y;
+					}
+					size[p]++;
+				}
+			}
+
+			// KEEP PARTICLES BY SIZE (HOLES NOT COUNTED) AND EDGE CONTACT
+			final int[] cellOf = new int[particles + 1];
+			int count = 0;
+			List<Rectangle> bounds = new ArrayList<Rectangle>();
+			for (int p = 1; p <= particles; p++) {
+				boolean onEdge = minX[p] == 0 || minY[p] == 0 || maxX[p] == width - 1 || maxY[p] == height - 1;
+				if (size[p] >= minSize && !(excludeEdges && onEdge)) {
+					cellOf[p] = ++count;
+					bounds.add(new Rectangle(minX[p], minY[p], maxX[p] - minX[p] + 1, maxY[p] - minY[p] + 1));
+				}
+			}
+
+			// THE PARENT ARRAY BECOMES THE LABEL MAP: EACH PIXEL ONLY READS ITS OWN ENTRY AND number[]
+			RowBands.run(height, threads, new RowBands.Body() {
+				@Override
+				public void rows(int y0, int y1) {
+					for (int i = y0 * width, end = y1 * width; i < end; i++) {
+						parent[i] = pixels[i] == fg ? cellOf[number[parent[i]]] : 0;
+					}
+				}
+			});
+
+			CellLabels cells = new CellLabels(binary, foreground, parent, count);
+			bounds.toArray(cells.bounds);
+			cells.fillHoles(pixels, fg, number);
+			cells.measureShapes();
+			return cells;
+		}
+
+		private static void linkAbove(byte[] pixels, byte fg, int[] parent, int width, int x, int i) {
+			int up = i - width;
+			if (x > 0 && pixels[up - 1] == fg) union(parent, i, up - 1);
+			if (pixels[up] == fg) union(parent, i, up);
+			if (x < width - 1 && pixels[up + 1] == fg) union(parent, i, up + 1);
+		}
+
+		private static int find(int[] parent, int i) {
+			while (parent[i] != i) {
+				// PATH HALVING
+				parent[i] = parent[parent[i]];
+				i = parent[i];
+			}
+			return i;
+		}
+
+		private static void union(int[] parent, int a, int b) {
+			int ra = find(parent, a);
+			int rb = find(parent, b);
+			if (ra < rb) {
+				parent[rb] = ra;
+			} else if (rb < ra) {
+				parent[ra] = rb;
+			}
+		}
+
+		// BACKGROUND THAT IS NOT 4-CONNECTED TO THE IMAGE BORDER IS A HOLE. IT BELONGS TO THE CELL
+		// ABOVE ITS FIRST PIXEL, WHICH IS THE PARTICLE THAT ENCLOSES IT
+		private void fillHoles(byte[] pixels, byte fg, int[] visited) {
+			Arrays.fill(visited, 0);
+			int[] stack = new int[256];
+			for (int x = 0; x < width; x++) {
+				stack = flood(pixels, fg, visited, x, 0, stack);
+				stack = flood(pixels, fg, visited, (height - 1) * width + x, 0, stack);
+			}
+			for (int y = 0; y < height; y++) {
+				stack = flood(pixels, fg, visited, y * width, 0, stack);
+				stack = flood(pixels, fg, visited, y * width + width - 1, 0, stack);
+			}
+			for (int i = width; i < pixels.length; i++) {
+				if (pixels[i] != fg && visited[i] == 0) {
+					stack = flood(pixels, fg, visited, i, labels[i - width], stack);
+				}
+			}
+		}
+
+		// MARKS THE 4-CONNECTED BACKGROUND REGION OF start AS VISITED AND GIVES IT THE LABEL
+		private int[] flood(byte[] pixels, byte fg, int[] visited, int start, int label, int[] stack) {
+			if (pixels[start] == fg || visited[start] != 0) {
+				return stack;
+			}
+			int top = 0;
+			stack[top++] = start;
+			visited[start] = 1;
+			while (top > 0) {
+				int i = stack[--top];
+				labels[i] = label;
+				int x = i % width;
+				if (stack.length < top + 4) {
+					stack = Arrays.copyOf(stack, stack.length * 2);
+				}
+				if (x > 0 && pixels[i - 1] != fg && visited[i - 1] == 0) { visited[i - 1] = 1; stack[top++] = i - 1; }
+				if (x < width - 1 && pixels[i + 1] != fg && visited[i + 1] == 0) { visited[i + 1] = 1; stack[top++] = i + 1; }
+				if (i >= width && pixels[i - width] != fg && visited[i - width] == 0) { visited[i - width] = 1; stack[top++] = i - width; }
+				if (i + width < pixels.length && pixels[i + width] != fg && visited[i + width] == 0) { visited[i + width] = 1; stack[top++] = i + width; }
+			}
+			return stack;
+		}
+
+		// AREA, FIRST PIXEL, AND THE FERET DIAMETER FROM THE CONVEX HULL OF THE CELL'S PIXEL CORNERS,
+		// WHICH IS THE HULL OF ITS TRACED OUTLINE
+		private void measureShapes() {
+			int[][] rowMin = new int[count][];
+			int[][] rowMax = new int[count][];
+			for (int c = 0; c < count; c++) {
+				rowMin[c] = new int[bounds[c].height];
+				rowMax[c] = new int[bounds[c].height];
+				Arrays.fill(rowMin[c], Integer.MAX_VALUE);
+				Arrays.fill(rowMax[c], -1);
+				firstPixel[c] = -1;
+			}
+			for (int y = 0, i = 0; y < height; y++) {
+				for (int x = 0; x < width; x++, i++) {
+					int c = labels[i] - 1;
+					if (c < 0) {
+						continue;
+					}
+					area[c]++;
+					if (firstPixel[c] < 0) firstPixel[c] = i;
+					int r = y - bounds[c].y;
+					if (x < rowMin[c][r]) rowMin[c][r] = x;
+					if (x > rowMax[c][r]) rowMax[c][r] = x;
+				}
+			}
+			for (int c = 0; c < count; c++) {
+				int rows = bounds[c].height;
+				long[] corners = new long[4 * rows];
+				int n = 0;
+				for (int r = 0; r < rows; r++) {
+					int y = bounds[c].y + r;
+					corners[n++] = point(rowMin[c][r], y);
+					corners[n++] = point(rowMin[c][r], y + 1);
+					corners[n++] = point(rowMax[c][r] + 1, y);
+					corners[n++] = point(rowMax[c][r] + 1, y + 1);
+				}
+				feret[c] = diameter(convexHull(corners));
+			}
+		}
+
+		private static long point(int x, int y) {
+			return ((long)x << 32) | (y & 0xffffffffL);
+		}
+
+		// ANDREW'S MONOTONE CHAIN; POINTS PACKED AS x << 32 | y, SO SORTING ORDERS BY x THEN y
+		private static long[] convexHull(long[] points) {
+			Arrays.sort(points);
+			long[] hull = new long[2 * points.length];
+			int k = 0;
+			for (int i = 0; i < points.length; i++) {
+				while (k >= 2 && cross(hull[k - 2], hull[k - 1], points[i]) <= 0) k--;
+				hull[k++] = points[i];
+			}
+			for (int i = points.length - 2, lower = k + 1; i >= 0; i--) {
+				while (k >= lower && cross(hull[k - 2], hull[k - 1], points[i]) <= 0) k--;
+				hull[k++] = points[i];
+			}
+			return Arrays.copyOf(hull, Math.max(1, k - 1));
+		}
+
+		private static long cross(long o, long a, long b) {
+			long ox = o >> 32, oy = (int)o;
+			return ((a >> 32) - ox) * ((long)(int)b - oy) - ((long)(int)a - oy) * ((b >> 32) - ox);
+		}
+
+		private static double diameter(long[] hull) {
+			long max = 0;
+			for (int i = 0; i < hull.length; i++) {
+				for (int j = i + 1; j < hull.length; j++) {
+					long dx = (hull[i] >> 32) - (hull[j] >> 32);
+					long dy = (long)(int)hull[i] - (int)hull[j];
+					max = Math.max(max, dx * dx + dy * dy);
+				}
+			}
+			return Math.sqrt(max);
+		}
+
+		// TRACED OUTLINES NAMED AS THE ROI MANAGER NAMES THEM, FOR EXPORT ONLY
+		Roi[] rois() {
+			Roi[] rois = new Roi[count];
+			Set<String> names = new HashSet<String>();
+			for (int c = 0; c < count; c++) {
+				Wand wand = new Wand(binary);
+				wand.autoOutline(firstPixel[c] % width, firstPixel[c] / width, foreground, foreground, Wand.LEGACY_MODE);
+				Roi roi = new PolygonRoi(Arrays.copyOf(wand.xpoints, wand.npoints), Arrays.copyOf(wand.ypoints, wand.npoints),
+						wand.npoints, Roi.TRACED_ROI);
+				Rectangle r = bounds[c];
+				String xs = Integer.toString(r.x + r.width / 2);
+				String ys = Integer.toString(r.y + r.height / 2);
+				int digits = Math.max(4, Math.max(xs.length(), ys.length()));
+				String name = pad(ys, digits) + "-" + pad(xs, digits);
+				for (int n = 1; !names.add(name); n++) {
+					name = pad(ys, digits) + "-" + pad(xs, digits) + "-" + n;
+				}
+				roi.setName(name);
+				rois[c] = roi;
+			}
+			return rois;
+		}
+
+		private static String pad(String digits, int width) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = digits.length(); i < width; i++) sb.append('0');
+			return sb.append(digits).toString();
+		}
+	}
+
+
+	// PER-CELL PIXEL COUNTS AND INTENSITY SUMS, GATHERED IN ONE PASS OVER PRIMITIVE ARRAYS
+	static class CellMeasurements {
+		final long[] area;
+		final long[] overlap;
+		final double[] intensity1;
+		final double[] intensity2;
+
+		private CellMeasurements(int numCells) {
+			area = new long[numCells];
+			overlap = new long[numCells];
+			intensity1 = new double[numCells];
+			intensity2 = new double[numCells];
+		}
+
+		// EACH ROW IS WALKED IN RUNS OF ONE LABEL, WHOSE OVERLAP IS A POPCOUNT OF THE PACKED MASK
+		static CellMeasurements measure(int[] labels, int numCells, BitMask overlapping, ImageProcessor cells1, ImageProcessor cells2) {
+			CellMeasurements m = new CellMeasurements(numCells);
+			Object pixels1 = cells1.getPixels();
+			Object pixels2 = cells2.getPixels();
+			int width = overlapping.width;
+			for (int rowStart = 0; rowStart < labels.length; rowStart += width) {
+				int rowEnd = rowStart + width;
+				int i = rowStart;
+				while (i < rowEnd) {
+					int label = labels[i];
+					int runEnd = i + 1;
+					while (runEnd < rowEnd && labels[runEnd] == label) {
+						runEnd++;
+					}
+					if (label != 0) {
+						int cell = label - 1;
+						m.area[cell] += runEnd - i;
+						m.overlap[cell] += overlapping.count(i, runEnd);
+						for (int j = i; j < runEnd; j++) {
+							m.intensity1[cell] += value(pixels1, j);
+							m.intensity2[cell] += value(pixels2, j);
+						}
+					}
+					i = runEnd;
+				}
+			}
+			return m;
+		}
+
+		private static double value(Object pixels, int i) {
+			if (pixels instanceof short[]) {
+				return ((short[])pixels)[i] & 0xffff;
+			} else if (pixels instanceof byte[]) {
+				return ((byte[])pixels)[i] & 0xff;
+			}
+			return ((float[])pixels)[i];
+		}
+	}
+
+
+	// POLLS AN ACQUISITION FOLDER FOR NEW IMAGES. A FILE IS HANDED ON ONCE ITS SIZE AND DATE HAVE STAYED
+	// THE SAME FOR THE SETTLE TIME, SO IMAGES STILL BEING WRITTEN ARE NOT READ. POLLING RATHER THAN A
+	// WatchService, WHICH MISSES EVENTS ON THE NETWORK SHARES MICROSCOPES OFTEN WRITE TO.
+	static class FolderWatcher {
+		static final String STOP_FILE = "vesscoopj.stop";
+
+		interface Filter {
+			boolean accept(File img);
+		}
+
+		final File folder;
+		final String extension;
+		final File stopFile;
+		private final long settleMillis;
+		long pollMillis = 1000;
+		private volatile boolean stopped;
+		// FILES ALREADY HANDED ON OR IGNORED, AND THE SIZE, DATE AND SINCE WHEN OF THOSE STILL SETTLING
+		private final Set<File> known = new HashSet<File>();
+		private final Map<File, long[]> settling = new HashMap<File, long[]>();
+
+		FolderWatcher(File folder, String extension, File stopFile, int settleSeconds) {
+			this.folder = folder;
+			this.extension = extension;
+			this.stopFile = stopFile;
+			this.settleMillis = settleSeconds * 1000L;
+		}
+
+		// IMAGES THAT ARE PROCESSED (OR SKIPPED) WITHOUT THE WATCHER
+		void ignore(List<File> images) {
+			known.addAll(images);
+		}
+
+		void stop() {
+			stopped = true;
+		}
+
+		// UNTIL stop() OR THE STOP FILE, WHICH IS DELETED SO THE NEXT SESSION STARTS WATCHING.
+		// A STOP FILE LEFT OVER FROM AN EARLIER SESSION IS REMOVED FIRST.
+		void run(Filter handOn) throws InterruptedException {
+			stopFile.delete();
+			while (!stopped) {
+				if (stopFile.exists()) {
+					stopFile.delete();
+					break;
+				}
+				poll(handOn, System.currentTimeMillis());
+				Thread.sleep(pollMillis);
+			}
+		}
+
+		void poll(Filter handOn, long now) {
+			for (File img : listImages(folder.getPath(), extension)) {
+				if (known.contains(img)) {
+					continue;
+				}
+				long size = img.length();
+				long modified = img.lastModified();
+				long[] last = settling.get(img);
+				if (last == null || last[0] != size || last[1] != modified) {
+					settling.put(img, new long[] { size, modified, now });
+				} else if (size > 0 && now - last[2] >= settleMillis) {
+					settling.remove(img);
+					known.add(img);
+					handOn.accept(img);
+				}
+			}
+		}
+	}
+
+
+	// ADMITS AN IMAGE INTO THE BATCH ONLY WHILE THE ESTIMATED HEAP OF ALL IMAGES IN FLIGHT STAYS WITHIN
+	// THE BUDGET. THE ESTIMATE COMES FROM THE FILE'S METADATA, BEFORE ANY PIXELS ARE READ. AN IMAGE
+	// LARGER THAN THE WHOLE BUDGET WAITS UNTIL NOTHING ELSE IS IN FLIGHT AND THEN RUNS ALONE. FEATURE
+	// STACKS ARE NOT COUNTED: THE CLASSIFIER MEMORY BUDGET BOUNDS THEM TILE BY TILE.
+	static class AdmissionControl {
+		// THE PROJECTIONS, SEGMENTATION AND MEASUREMENT IMAGES AND THE RGB PREVIEWS THAT ARE ALIVE TOGETHER
+		// BETWEEN READ AND WRITE, IN BYTES PER PIXEL OF ONE PLANE, ON TOP OF THE PLANES BEING READ
+		static final int WORKING_BYTES_PER_PIXEL = 48;
+		// THE VOLUME PASS: THE HALF MAXIMUM AND VESSEL SUM, AND THE SUMMED, PREPROCESSED AND CLASSIFIED SLAB
+		static final int VOLUME_BYTES_PER_PIXEL = 20;
+
+		private final int budgetMB;
+		private final int volumeSlab;
+		private final Semaphore budget;
+		private final Map<File, Integer> admitted = new ConcurrentHashMap<File, Integer>();
+
+		AdmissionControl(long budgetMB, int volumeSlab) {
+			this.budgetMB = (int)Math.min(Integer.MAX_VALUE, budgetMB);
+			this.volumeSlab = volumeSlab;
+			this.budget = new Semaphore(this.budgetMB, true);
+		}
+
+		// BLOCKS UNTIL THE IMAGE FITS; EVERY ADMITTED IMAGE MUST BE RELEASED ONCE.
+		// THE READER IS THE ONE THE IMAGE WILL BE READ WITH, SO ITS METADATA IS ONLY PARSED ONCE
+		void admit(File img, ImageProcessorReader reader) throws InterruptedException {
+			int mb = estimateMB(reader.getSizeX(), reader.getSizeY(), FormatTools.getBytesPerPixel(reader.getPixelType()),
+					reader.getRGBChannelCount(), volumeSlab);
+			if (mb > budgetMB) {
+				IJ.log(img.getName() + " needs about " + mb + " MB, more than the image memory budget; it will run alone");
+			}
+			int permits = Math.min(mb, budgetMB);
+			budget.acquire(permits);
+			admitted.put(img, permits);
+		}
+
+		void release(File img) {
+			Integer permits = admitted.remove(img);
+			if (permits != null) {
+				budget.release(permits);
+			}
+		}
+
+		// ONLY THE ANALYZED CHANNELS OF ONE SLICE ARE READ AT A TIME, SO Z DEPTH AND CHANNEL COUNT ONLY
+		// MATTER THROUGH THE INTERLEAVED SAMPLES OF AN RGB PLANE. THE VOLUME PASS RUNS WHILE THE
+		// PROJECTIONS ARE STILL ALIVE, READS THE SAME PLANES AGAIN AND KEEPS ONE CELL MASK PER SLAB SLICE
+		static int estimateMB(int width, int height, int bytesPerPixel, int samplesPerPlane, int volumeSlab) {
+			long pixels = (long)width * height;
+			long planes = 3L * bytesPerPixel * Math.max(1, samplesPerPlane);
+			// THREE PLANES BEING READ, TWO CELL MAXIMUMS AND THE MERGED MAXIMUM AT SOURCE DEPTH
+			long bytes = pixels * (planes + 3L * bytesPerPixel + WORKING_BYTES_PER_PIXEL);
+			if (volumeSlab > 0) {
+				bytes += pixels * (planes + VOLUME_BYTES_PER_PIXEL) + pixels * volumeSlab / 8;
+			}
+			return (int)Math.min(Integer.MAX_VALUE, (bytes >> 20) + 1);
+		}
+	}
+
+
+	// THE WORK QUEUE OF A SHARDED RUN: A FOLDER IN THE OUTPUT FOLDER WITH ONE LEASE FILE PER IMAGE THAT A
+	// WORKER IS PROCESSING AND ONE DONE FILE PER IMAGE THAT IS FINISHED. A WORKER CLAIMS AN IMAGE BY CREATING
+	// ITS LEASE AND KEEPS THE LEASE'S DATE FRESH WHILE IT HOLDS IT. A LEASE LEFT UNREFRESHED FOR leaseMillis
+	// BELONGS TO A WORKER THAT DIED, AND THE NEXT WORKER LOOKING FOR WORK TAKES IT OVER. IN A RACE AN IMAGE
+	// IS AT WORST PROCESSED TWICE, WHICH ONLY REWRITES THE SAME OUTPUTS.
+	static class LeaseQueue {
+		static final String FOLDER = "vesscoopj_queue";
+		// AN IMAGE THAT KEEPS KILLING ITS WORKER IS GIVEN UP ON INSTEAD OF TAKING DOWN EVERY WORKER IN TURN
+		static final int MAX_ATTEMPTS = 3;
+
+		final File folder;
+		final String worker;
+		private final long leaseMillis;
+		long pollMillis = 1000;
+		private final Set<File> held = Collections.synchronizedSet(new HashSet<File>());
+
+		LeaseQueue(File folder, String worker, long leaseMillis) {
+			this.folder = folder;
+			this.worker = worker;
+			this.leaseMillis = leaseMillis;
+		}
+
+		// vesscoopj_manifest.tsv OF worker3 IS vesscoopj_manifest.worker3.tsv
+		static String partName(String fileName, String worker) {
+			int dot = fileName.lastIndexOf('.');
+			return dot < 0 ? fileName + "." + worker : fileName.substring(0, dot) + "." + worker + fileName.substring(dot);
+		}
+
+		// THE LEASES AND DONE FILES OF A PREVIOUS RUN; WHAT IT FINISHED IS IN THE RUN MANIFEST
+		static void clear(File folder) throws IOException {
+			File[] files = folder.listFiles();
+			if (files != null) {
+				for (File f : files) {
+					f.delete();
+				}
+			}
+			if (!folder.isDirectory() && !folder.mkdirs()) {
+				throw new IOException("Could not create " + folder);
+			}
+		}
+
+		// THE NEXT IMAGE THAT IS NEITHER HELD BY A LIVE WORKER NOR DONE, NULL WHEN THERE IS NONE RIGHT NOW
+		File claim(List<File> images) throws IOException {
+			for (File img : images) {
+				if (held.contains(img) || marker(img, ".done").exists()) {
+					continue;
+				}
+				File lease = marker(img, ".lease");
+				int attempt = 1;
+				long modified = lease.lastModified();
+				if (modified != 0) {
+					if (System.currentTimeMillis() - modified < leaseMillis) {
+						continue;
+					}
+					attempt = takeOver(lease);
+					if (attempt < 0) {
+						continue;
+					}
+					if (attempt > MAX_ATTEMPTS) {
+						IJ.log("Giving up on " + img.getName() + ": its worker stopped " + MAX_ATTEMPTS + " times while processing it");
+						Files.write(marker(img, ".done").toPath(), ("failed\t" + worker + "\n").getBytes(StandardCharsets.UTF_8));
+						continue;
+					}
+				}
+				try {
+					Files.write(lease.toPath(), (worker + "\t" + attempt + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW);
+				} catch (FileAlreadyExistsException e) {
+					continue;
+				}
+				// THE WORKER THAT FINISHED IT MAY HAVE REMOVED ITS LEASE JUST BEFORE OURS WAS CREATED
+				if (marker(img, ".done").exists()) {
+					lease.delete();
+					continue;
+				}
+				held.add(img);
+				return img;
+			}
+			return null;
+		}
+
+		// MOVE THE EXPIRED LEASE OUT OF THE WAY; ONLY ONE WORKER CAN. THE NEXT ATTEMPT NUMBER, OR -1 IF ANOTHER WORKER WON
+		private int takeOver(File lease) throws IOException {
+			File expired = new File(folder, lease.getName() + "." + worker + ".expired");
+			try {
+				Files.move(lease.toPath(), expired.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (NoSuchFileException | AtomicMoveNotSupportedException e) {
+				return -1;
+			}
+			try {
+				// ANOTHER WORKER TOOK IT OVER AND CREATED A FRESH LEASE BETWEEN OUR CHECK AND OUR MOVE
+				if (System.currentTimeMillis() - expired.lastModified() < leaseMillis) {
+					try {
+						Files.move(expired.toPath(), lease.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					} catch (FileAlreadyExistsException e) {
+						// A THIRD WORKER HAS IT NOW
+					}
+					return -1;
+				}
+				String[] fields = new String(Files.readAllBytes(expired.toPath()), StandardCharsets.UTF_8).trim().split("\t");
+				IJ.log("Taking over " + lease.getName() + " from " + fields[0]);
+				return fields.length == 2 ? Integer.parseInt(fields[1]) + 1 : 2;
+			} catch (NumberFormatException e) {
+				return 2;
+			} finally {
+				expired.delete();
+			}
+		}
+
+		// KEEP THE LEASES OF THIS WORKER FROM EXPIRING
+		void refresh() {
+			long now = System.currentTimeMillis();
+			synchronized (held) {
+				for (File img : held) {
+					marker(img, ".lease").setLastModified(now);
+				}
+			}
+		}
+
+		// THE DONE FILE COMES FIRST, SO THE IMAGE IS NEVER UNLEASED AND UNFINISHED
+		void done(File img) {
+			if (!held.remove(img)) {
+				return;
+			}
+			try {
+				Files.write(marker(img, ".done").toPath(), (worker + "\n").getBytes(StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				IJ.log("Could not mark " + img.getName() + " as done, another worker may process it again: " + e.getMessage());
+			}
+			marker(img, ".lease").delete();
+		}
+
+		// EVERY IMAGE IS DONE, BY THIS WORKER OR ANOTHER
+		boolean finished(List<File> images) {
+			for (File img : images) {
+				if (!marker(img, ".done").exists()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private File marker(File img, String suffix) {
+			return new File(folder, img.getName() + suffix);
+		}
+	}
+
+
+	// RUNS THE PER-IMAGE PIPELINE AS THREE OVERLAPPING STAGES: READ -> COMPUTE -> WRITE.
+	// BOUNDED QUEUES BETWEEN THE STAGES BLOCK A STAGE THAT RUNS AHEAD, SO AT MOST
+	// readers + workers + writers + 2 * queueDepth IMAGES ARE IN MEMORY AT ONCE, AND
+	// AdmissionControl KEEPS THEIR ESTIMATED HEAP WITHIN imageMemoryMB.
+	static class BatchEngine {
+		// MARKS THE END OF A QUEUE, ONE PER CONSUMING THREAD
+		private static final Object END = new Object();
+
+		private final ImagePipeline pipeline;
+		private final BatchOptions options;
+		private final AdmissionControl admission;
+		// IN A SHARDED RUN, THE LEASES OF THE IMAGES THIS WORKER CLAIMED
+		private LeaseQueue leases;
+		private final AtomicInteger total = new AtomicInteger();
+		private final AtomicInteger done = new AtomicInteger();
+		// WHEN WATCHING, EVERY FINISHED IMAGE IS ALSO LOGGED
+		private boolean streaming;
+
+		BatchEngine(ImagePipeline pipeline, BatchOptions options) {
+			this.pipeline = pipeline;
+			this.options = options;
+			this.admission = new AdmissionControl(options.imageMemoryMB, pipeline.params.volumeSlab);
+			// SHARE THE CORES BETWEEN THE WORKERS INSTEAD OF GIVING EVERY STAGE ALL OF THEM
+			pipeline.threads = Math.max(1, Prefs.getThreads() / options.workers);
+		}
+
+		static int defaultWorkers() {
+			return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+		}
+
+		void run(List<File> images) {
+			BlockingQueue<Object> files = new LinkedBlockingQueue<Object>(images);
+			for (int i = 0; i < options.readers; i++) {
+				files.add(END);
+			}
+			total.set(images.size());
+			run(files);
+		}
+
+		// THE IMAGES, THEN EACH NEW ONE THE WATCHER FINDS AND filter ACCEPTS, UNTIL THE WATCHER IS STOPPED
+		void run(List<File> images, final FolderWatcher watcher, final FolderWatcher.Filter filter) {
+			final BlockingQueue<Object> files = new LinkedBlockingQueue<Object>(images);
+			total.set(images.size());
+			streaming = true;
+			Thread watch = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						watcher.run(new FolderWatcher.Filter() {
+							@Override
+							public boolean accept(File img) {
+								if (!filter.accept(img)) {
+									return false;
+								}
+								total.incrementAndGet();
+								files.add(img);
+								return true;
+							}
+						});
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						for (int i = 0; i < options.readers; i++) {
+							files.add(END);
+						}
+					}
+				}
+			}, "VessCoopJ-watch");
+			watch.setDaemon(true);
+			watch.start();
+			run(files);
+		}
+
+		// THE IMAGES THIS WORKER CLAIMS FROM THE QUEUE, ONE AT A TIME AS A READER BECOMES FREE, UNTIL EVERY
+		// IMAGE IS DONE BY SOME WORKER. WHILE OTHER WORKERS STILL HOLD LEASES THIS ONE KEEPS POLLING, TO
+		// TAKE OVER A LEASE THAT EXPIRES.
+		void run(final List<File> images, final LeaseQueue queue) {
+			final BlockingQueue<Object> files = new ArrayBlockingQueue<Object>(options.readers);
+			leases = queue;
+			streaming = true;
+			Thread claim = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					long refreshed = System.currentTimeMillis();
+					try {
+						while (true) {
+							File img = queue.claim(images);
+							if (img != null) {
+								total.incrementAndGet();
+								files.put(img);
+							} else if (queue.finished(images)) {
+								break;
+							} else {
+								Thread.sleep(queue.pollMillis);
+							}
+						}
+					} catch (IOException e) {
+						IJ.log("Stopped claiming images: " + e.getMessage());
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						try {
+							for (int i = 0; i < options.readers; i++) {
+								files.put(END);
+							}
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				}
+			}, "VessCoopJ-claim");
+			claim.setDaemon(true);
+			claim.start();
+			Thread heartbeat = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							queue.refresh();
+							Thread.sleep(queue.pollMillis);
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, "VessCoopJ-lease");
+			heartbeat.setDaemon(true);
+			heartbeat.start();
+			run(files);
+			heartbeat.interrupt();
+		}
+
+		// READERS TAKE FILES UNTIL THEY EACH MEET AN END
+		private void run(final BlockingQueue<Object> files) {
+			final BlockingQueue<Object> loaded = new ArrayBlockingQueue<Object>(options.queueDepth);
+			final BlockingQueue<Object> computed = new ArrayBlockingQueue<Object>(options.queueDepth);
+
+			List<Thread> threads = new ArrayList<Thread>();
+			threads.addAll(stage("read", options.readers, options.workers, loaded, new Step() {
+				@Override
+				public boolean next() throws InterruptedException {
+					Object next = files.take();
+					if (next == END) {
+						return false;
+					}
+					File img = (File)next;
+					ImageProcessorReader reader;
+					try {
+						reader = ImagePipeline.openReader(img);
+					} catch (Throwable e) {
+						settle(img);
+						failed(img.getName(), e);
+						return true;
+					}
+					LoadedImage image = null;
+					try {
+						try {
+							admission.admit(img, reader);
+							image = pipeline.read(img, reader);
+							if (pipeline.params.volumeSlab > 0) {
+								image.reader = reader;
+							}
+						} finally {
+							if (image == null || image.reader == null) {
+								reader.close();
+							}
+						}
+						loaded.put(image);
+					} catch (InterruptedException e) {
+						if (image != null) {
+							image.close();
+						}
+						admission.release(img);
+						throw e;
+					} catch (Throwable e) {
+						// ANY ERROR FAILS THE IMAGE, NEVER THE THREAD, OR THE STAGES AROUND IT WOULD WAIT FOREVER
+						settle(img);
+						failed(img.getName(), e);
+					}
+					return true;
+				}
+			}));
+			threads.addAll(stage("compute", options.workers, options.writers, computed, new Step() {
+				@Override
+				public boolean next() throws InterruptedException {
+					Object image = loaded.take();
+					if (image == END) {
+						return false;
+					}
+					try {
+						computed.put(pipeline.compute((LoadedImage)image));
+					} catch (InterruptedException e) {
+						throw e;
+					} catch (Throwable e) {
+						((LoadedImage)image).close();
+						settle(((LoadedImage)image).file);
+						failed(((LoadedImage)image).imageName, e);
+					}
+					return true;
+				}
+			}));
+			threads.addAll(stage("write", options.writers, 0, null, new Step() {
+				@Override
+				public boolean next() throws InterruptedException {
+					Object result = computed.take();
+					if (result == END) {
+						return false;
+					}
+					try {
+						pipeline.write((ImageResult)result);
+						finished(((ImageResult)result).imageName);
+					} catch (Throwable e) {
+						failed(((ImageResult)result).imageName, e);
+					} finally {
+						settle(((ImageResult)result).file);
+					}
+					return true;
+				}
+			}));
+
+			try {
+				for (Thread t : threads) {
+					t.join();
+				}
+			} catch (InterruptedException e) {
+				for (Thread t : threads) {
+					t.interrupt();
+				}
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private interface Step {
+			// PROCESS ONE ITEM, RETURN FALSE WHEN THE INPUT IS EXHAUSTED
+			boolean next() throws InterruptedException;
+		}
+
+		// START count THREADS RUNNING step; WHEN THE LAST ONE FINISHES, SEND ONE END PER DOWNSTREAM THREAD
+		private List<Thread> stage(final String name, int count, final int downstreamThreads, final BlockingQueue<Object> downstream, final Step step) {
+			final AtomicInteger running = new AtomicInteger(count);
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 1; i <= count; i++) {
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							while (step.next()) {
+								// KEEP GOING
+							}
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						} finally {
+							// EVEN A THREAD KILLED BY AN ERROR MUST NOT LEAVE THE NEXT STAGE WAITING
+							if (running.decrementAndGet() == 0 && downstream != null) {
+								try {
+									for (int j = 0; j < downstreamThreads; j++) {
+										downstream.put(END);
+									}
+								} catch (InterruptedException e) {
+									Thread.currentThread().interrupt();
+								}
+							}
+						}
+					}
+				}, "VessCoopJ-" + name + "-" + i);
+				t.setDaemon(true);
+				t.start();
+				threads.add(t);
+			}
+			return threads;
+		}
+
+		// EVERY ADMITTED IMAGE ENDS HERE ONCE, WRITTEN OR FAILED
+		private void settle(File img) {
+			admission.release(img);
+			if (leases != null) {
+				leases.done(img);
+			}
+		}
+
+		private void finished(String imageName) {
+			int n = done.incrementAndGet();
+			if (streaming) {
+				IJ.log("Processed " + imageName + " (" + n + " of " + total.get() + " so far)");
+			}
+			IJ.showProgress(n, total.get());
+			IJ.showStatus("Processed " + n + " of " + total.get() + " images");
+		}
+
+		private void failed(String imageName, Throwable e) {
+			IJ.log("Failed to process " + imageName + ": " + e);
+			// A HALF-PROCESSED IMAGE WOULD SKEW THE SUMMARY
+			pipeline.profiler.discard(imageName);
+			finished(imageName);
+		}
+	}
+
+
+	// ONE BATCH SPLIT ACROSS SEVERAL JVMS ON THIS MACHINE, SO GC PAUSES AND SINGLE-THREADED FILTERS OF ONE
+	// PROCESS DO NOT HOLD THE OTHERS BACK. THE COORDINATOR STARTS THE WORKERS, RESTARTS ONE THAT CRASHES, AND
+	// MERGES THEIR MANIFESTS AND TIMINGS WHEN ALL HAVE EXITED. EACH WORKER RUNS THE PROFILE'S BATCH ON THE
+	// IMAGES IT CLAIMS FROM THE LeaseQueue AND APPENDS ITS CELLS TO THE SHARED RESULTS STORE.
+	static class ShardedRun {
+		static final String USAGE = "shards profile=<" + ParameterProfile.FILE_NAME + "> [workers=2] [leaseSeconds=120] [jvm=-Xmx8g ...]";
+		static final String LOG_FILE = "vesscoopj_worker.log";
+
+		File profile;
+		int workers = 2;
+		int leaseSeconds = 120;
+		// PASSED TO EVERY WORKER JVM BEFORE THE CLASS NAME
+		List<String> jvmOptions = new ArrayList<String>();
+
+		static void main(String[] args) throws Exception {
+			ShardedRun run = new ShardedRun();
+			for (String arg : args) {
+				int eq = arg.indexOf('=');
+				String key = eq < 0 ? arg : arg.substring(0, eq);
+				String value = eq < 0 ? "" : arg.substring(eq + 1);
+				if (key.equals("profile")) {
+					run.profile = new File(value);
+				} else if (key.equals("workers")) {
+					run.workers = Math.max(1, Integer.parseInt(value));
+				} else if (key.equals("leaseSeconds")) {
+					run.leaseSeconds = Math.max(1, Integer.parseInt(value));
+				} else if (key.equals("jvm")) {
+					run.jvmOptions.add(value);
+				} else {
+					throw new IllegalArgumentException("Unknown option " + arg + "\nUsage: " + USAGE);
+				}
+			}
+			if (run.profile == null) {
+				throw new IllegalArgumentException("No profile given\nUsage: " + USAGE);
+			}
+			run.run();
+		}
+
+		void run() throws IOException, InterruptedException {
+			ParameterProfile loaded = ParameterProfile.load(profile);
+			File output = new File(loaded.params.outputPath);
+			if (!output.isDirectory() && !output.mkdirs()) {
+				throw new IOException("Could not create output folder " + output);
+			}
+			LeaseQueue.clear(new File(output, LeaseQueue.FOLDER));
+			// SHARE THE CORES BETWEEN THE WORKERS
+			int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / workers);
+			IJ.log("Processing " + loaded.inputPath + " with " + workers + " workers of " + threads + " threads");
+
+			Process[] processes = new Process[workers];
+			int[] restarts = new int[workers];
+			for (int i = 0; i < workers; i++) {
+				processes[i] = start(i + 1, threads, output);
+			}
+			boolean running = true;
+			while (running) {
+				Thread.sleep(1000);
+				running = false;
+				for (int i = 0; i < workers; i++) {
+					if (processes[i] == null) {
+						continue;
+					}
+					if (processes[i].isAlive()) {
+						running = true;
+						continue;
+					}
+					int exit = processes[i].exitValue();
+					processes[i] = null;
+					// ITS LEASES EXPIRE AND ARE TAKEN OVER, BY THE OTHER WORKERS OR BY ITS REPLACEMENT
+					if (exit != 0 && restarts[i] < LeaseQueue.MAX_ATTEMPTS) {
+						restarts[i]++;
+						IJ.log("Worker " + (i + 1) + " exited with " + exit + ", restarting it");
+						processes[i] = start(i + 1, threads, output);
+						running = true;
+					} else if (exit != 0) {
+						IJ.log("Worker " + (i + 1) + " exited with " + exit + " too often, not restarting it");
+					}
+				}
+			}
+			merge(loaded, output);
+		}
+
+		private Process start(int worker, int threads, File output) throws IOException {
+			List<String> command = new ArrayList<String>();
+			command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+			command.addAll(jvmOptions);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(VessCoopJ_V4.class.getName());
+			command.add("worker");
+			command.add("profile=" + profile.getAbsolutePath());
+			command.add("id=worker" + worker);
+			command.add("threads=" + threads);
+			command.add("leaseSeconds=" + leaseSeconds);
+			ProcessBuilder builder = new ProcessBuilder(command);
+			builder.redirectErrorStream(true);
+			builder.redirectOutput(ProcessBuilder.Redirect.appendTo(new File(output, LeaseQueue.partName(LOG_FILE, "worker" + worker))));
+			return builder.start();
+		}
+
+		// ONE MANIFEST, ONE TIMING SUMMARY, ONE DRIFT REPORT AND ONE CSV, AS IF A SINGLE PROCESS HAD RUN THE BATCH
+		private void merge(ParameterProfile loaded, File output) throws IOException {
+			List<File> manifests = new ArrayList<File>();
+			List<File> samples = new ArrayList<File>();
+			List<File> drifts = new ArrayList<File>();
+			for (int i = 1; i <= workers; i++) {
+				manifests.add(new File(output, LeaseQueue.partName(RunManifest.FILE_NAME, "worker" + i)));
+				samples.add(new File(output, LeaseQueue.partName(StageProfiler.SAMPLES_FILE, "worker" + i)));
+				drifts.add(new File(output, LeaseQueue.partName(ClassifierCache.DRIFT_FILE, "worker" + i)));
+			}
+			RunManifest.merge(output, manifests);
+
+			OutputWriter outputs = openOutputs(loaded.params.outputPath, loaded.options);
+			if (loaded.options.profileStages) {
+				StageProfiler profiler = new StageProfiler(true);
+				for (File f : samples) {
+					if (f.isFile()) {
+						profiler.loadSamples(f);
+						f.delete();
+					}
+				}
+				profiler.writeSummary(loaded.params.outputPath + StageProfiler.SUMMARY_FILE, outputs);
+			}
+			// ONLY THE ROWS ARE NEEDED, SO THE CACHE NEVER LOADS A MODEL
+			ClassifierCache drift = new ClassifierCache(loaded.options.tileSize, loaded.options.classifierMemoryMB);
+			for (File f : drifts) {
+				if (f.isFile()) {
+					drift.loadDrift(f);
+					f.delete();
+				}
+			}
+			drift.writeDrift(loaded.params.outputPath + ClassifierCache.DRIFT_FILE, outputs);
+			if (outputs.results.file.isFile()) {
+				ResultsStore.exportCsv(outputs.results.file, new File(output, ResultsStore.CSV_NAME));
+			}
+			IJ.log("All workers finished; results are in " + output);
+		}
+
+		// ONE WORKER JVM: profile=<file> id=<name> [threads=<n>] [leaseSeconds=<n>]
+		static void worker(String[] args) throws IOException {
+			File profileFile = null;
+			String id = null;
+			int leaseSeconds = 120;
+			for (String arg : args) {
+				int eq = arg.indexOf('=');
+				String key = eq < 0 ? arg : arg.substring(0, eq);
+				String value = eq < 0 ? "" : arg.substring(eq + 1);
+				if (key.equals("profile")) {
+					profileFile = new File(value);
+				} else if (key.equals("id")) {
+					id = value;
+				} else if (key.equals("threads")) {
+					Prefs.setThreads(Math.max(1, Integer.parseInt(value)));
+				} else if (key.equals("leaseSeconds")) {
+					leaseSeconds = Math.max(1, Integer.parseInt(value));
+				} else {
+					throw new IllegalArgumentException("Unknown worker option " + arg);
+				}
+			}
+			if (profileFile == null || id == null) {
+				throw new IllegalArgumentException("A worker needs profile= and id=");
+			}
+			ParameterProfile loaded = ParameterProfile.load(profileFile);
+			AnalysisParameters params = loaded.params;
+			BatchOptions options = loaded.options;
+			if (options.watch) {
+				IJ.log("Watching the folder is not supported in a sharded run; processing the images there now");
+			}
+			RunManifest manifest = null;
+			if (options.resume) {
+				try {
+					manifest = new RunManifest(params.outputPath, options.hashInputs, LeaseQueue.partName(RunManifest.FILE_NAME, id));
+				} catch (IOException e) {
+					IJ.log("Could not read " + RunManifest.FILE_NAME + ", all images will be processed: " + e.getMessage());
+				}
+			}
+			List<File> images = listImages(loaded.inputPath, params.fileExtension);
+			LeaseQueue leases = new LeaseQueue(new File(params.outputPath, LeaseQueue.FOLDER), id, leaseSeconds * 1000L);
+			processBatch(images, params, options, new ClassifierCache(options.tileSize, options.classifierMemoryMB),
+					openOutputs(params.outputPath, options), manifest, new StageProfiler(options.profileStages), null, leases);
+		}
+	}
+
+
+	// HEADLESS CHECKS OF THE FILE FORMATS THAT MUST SURVIVE A CRASHED OR KILLED PROCESS. RUN WITH
+	// "selftest"; THE PROCESS EXITS WITH 1 IF ANY CHECK FAILS.
+	static class SelfTest {
+		private int failures;
+
+		static void main(String[] args) throws Exception {
+			SelfTest test = new SelfTest();
+			test.resultsStoreTornTail();
+			System.out.println(test.failures == 0 ? "All checks passed" : test.failures + " checks failed");
+			if (test.failures > 0) {
+				System.exit(1);
+			}
+		}
+
+		// A WRITER KILLED MID-BLOCK, THEN MORE APPENDS: THE TORN BLOCK IS LOST, NOTHING ELSE
+		void resultsStoreTornTail() throws IOException {
+			File file = File.createTempFile("vesscoopj-selftest", ".bin");
+			try {
+				ResultsStore store = new ResultsStore(file);
+				store.append(block("a", 1));
+				long complete = file.length();
+				store.append(block("b", 2));
+				RandomAccessFile torn = new RandomAccessFile(file, "rw");
+				try {
+					torn.setLength(complete + (file.length() - complete) / 2);
+				} finally {
+					torn.close();
+				}
+				check("torn tail is ignored", names(ResultsStore.read(file)), "a");
+				store.append(block("c", 3));
+				check("append after a torn tail", names(ResultsStore.read(file)), "a,c");
+			} finally {
+				file.delete();
+			}
+		}
+
+		private static ResultsStore.Block block(String imageName, double value) {
+			double[] column = { value, value };
+			return ResultsStore.block(imageName, "micron", "Cell Channel 1", "Cell Channel 2", column, column, column, column, column, column);
+		}
+
+		private static String names(List<ResultsStore.Block> blocks) {
+			StringBuilder sb = new StringBuilder();
+			for (ResultsStore.Block block : blocks) {
+				sb.append(sb.length() > 0 ? "," : "").append(block.imageName);
+			}
+			return sb.toString();
+		}
+
+		private void check(String name, String actual, String expected) {
+			if (!expected.equals(actual)) {
+				failures++;
+				System.out.println("FAILED " + name + ": expected " + expected + ", got " + actual);
+			}
+		}
+	}
+
+
+	// HEADLESS TIMINGS OF EACH STAGE ON SYNTHETIC VESSEL AND CELL IMAGES, TO COMPARE FIJI UPDATES,
+	// PARAMETER CHANGES AND PLUGIN VERSIONS ON THE SAME MACHINE. EVERY CASE PREPARES A FRESH
+	// INPUT OUTSIDE THE TIMED REGION, IS WARMED UP, THEN TIMED OVER SEVERAL ITERATIONS.
+	static class PipelineBenchmark {
+		static final String USAGE = "benchmark [sizes=1024,4096,16384] [slices=5,20] [warmup=2] [iterations=5]"
+				+ " [threads=0] [classifier=<vessel .model>] [output=vesscoopj_benchmark.csv]";
+
+		int[] sizes = { 1024, 4096, 16384 };
+		int[] slices = { 5, 20 };
+		int warmup = 2;
+		int iterations = 5;
+		int threads = 0;
+		// WITHOUT A VESSEL CLASSIFIER THE END-TO-END CASE IS SKIPPED
+		String classifierPath;
+		String output = "vesscoopj_benchmark.csv";
+
+		private final ResultsTable table = new ResultsTable();
+
+		static void main(String[] args) throws Exception {
+			PipelineBenchmark benchmark = new PipelineBenchmark();
+			for (String arg : args) {
+				int eq = arg.indexOf('=');
+				String key = eq < 0 ? arg : arg.substring(0, eq);
+				String value = eq < 0 ? "" : arg.substring(eq + 1);
+				if (key.equals("sizes")) {
+					benchmark.sizes = parseInts(value);
+				} else if (key.equals("slices")) {
+					benchmark.slices = parseInts(value);
+				} else if (key.equals("warmup")) {
+					benchmark.warmup = Integer.parseInt(value);
+				} else if (key.equals("iterations")) {
+					benchmark.iterations = Integer.parseInt(value);
+				} else if (key.equals("threads")) {
+					benchmark.threads = Integer.parseInt(value);
+				} else if (key.equals("classifier")) {
+					benchmark.classifierPath = value;
+				} else if (key.equals("output")) {
+					benchmark.output = value;
+				} else {
+					throw new IllegalArgumentException("Unknown option " + arg + "\nUsage: " + USAGE);
+				}
+			}
+			benchmark.run();
+		}
+
+		private static int[] parseInts(String list) {
+			String[] parts = list.split(",");
+			int[] values = new int[parts.length];
+			for (int i = 0; i < parts.length; i++) {
+				values[i] = Integer.parseInt(parts[i].trim());
+			}
+			return values;
+		}
+
+		void run() throws Exception {
+			File scratch = Files.createTempDirectory("vesscoopj-benchmark").toFile();
+			try {
+				for (int size : sizes) {
+					// ABOUT A DOZEN FLOAT-SIZED IMAGES ARE ALIVE AT ONCE; SKIP SIZES THAT CANNOT FIT
+					long footprint = 48L * size * size;
+					if (footprint > Runtime.getRuntime().maxMemory() * 8 / 10) {
+						IJ.log("Skipping " + size + " x " + size + ": needs about " + (footprint >> 20) + " MB of heap");
+						continue;
+					}
+					runSize(size, scratch);
+				}
+			} finally {
+				for (File f : scratch.listFiles()) {
+					f.delete();
+				}
+				scratch.delete();
+			}
+			new OutputWriter(OutputWriter.NONE, false).saveResults(table, output);
+			IJ.log("Benchmark results saved to " + new File(output).getAbsolutePath());
+		}
+
+		private void runSize(final int size, File scratch) throws Exception {
+			final AnalysisParameters params = new AnalysisParameters();
+			params.outputPath = scratch.getPath() + File.separator;
+			params.bloodVesselChannel = 1;
+			params.cellChannel1 = 2;
+			params.cellChannel2 = 3;
+			params.minSlice = 1;
+			params.vesselClassifierPath = classifierPath;
+			final ImagePipeline pipeline = new ImagePipeline(params,
+					new ClassifierCache(2048, Math.max(256, IJ.maxMemory() / (2L << 20))), new OutputWriter(OutputWriter.NONE, true));
+			pipeline.threads = threads;
+
+			// ONE PLANE PER CHANNEL, RETURNED FOR EVERY SLICE: THE PROJECTION DOES THE SAME WORK PER PLANE
+			final ImageProcessor[] planes = SyntheticImage.planes(size, size, 42L);
+			final StackProjector.PlaneSource source = new StackProjector.PlaneSource() {
+				@Override
+				public ImageProcessor plane(int channel, int slice) {
+					return planes[channel - 1];
+				}
+			};
+			Projections projections = null;
+			for (final int nSlices : slices) {
+				final Projections[] projected = new Projections[1];
+				measure("sum/max projection", size, nSlices, new Case() {
+					@Override
+					void run() throws Exception {
+						projected[0] = StackProjector.project(source, nSlices, size, size, new Calibration(), params);
+					}
+				});
+				projections = projected[0];
+			}
+			if (projections == null) {
+				return;
+			}
+			final Projections p = projections;
+
+			final ImagePlus[] input = new ImagePlus[1];
+			measure("clahe (ImageJ)", size, 0, new Case() {
+				@Override
+				void setUp() {
+					input[0] = p.bloodVessels.duplicate();
+				}
+				@Override
+				void run() {
+					IJ.run(input[0], "Enhance Local Contrast (CLAHE)", "blocksize=127 histogram=255 maximum=3 mask=*None*");
+				}
+			});
+			measure("remove outliers (ImageJ)", size, 0, new Case() {
+				@Override
+				void setUp() {
+					input[0] = p.bloodVessels.duplicate();
+				}
+				@Override
+				void run() {
+					IJ.run(input[0], "Remove Outliers...", "radius=1 threshold=0 which=Bright");
+				}
+			});
+			final int nThreads = threads > 0 ? threads : Prefs.getThreads();
+			measure("clahe (native)", size, 0, new Case() {
+				@Override
+				void setUp() {
+					input[0] = p.bloodVessels.duplicate();
+				}
+				@Override
+				void run() {
+					VesselPreprocessor.clahe(input[0].getProcessor(), nThreads);
+				}
+			});
+			measure("remove outliers (native)", size, 0, new Case() {
+				@Override
+				void setUp() {
+					input[0] = p.bloodVessels.duplicate();
+				}
+				@Override
+				void run() {
+					VesselPreprocessor.removeBrightOutliers(input[0].getProcessor(), nThreads);
+				}
+			});
+
+			final ImagePlus[] cells = new ImagePlus[1];
+			measure("bernsen and watershed", size, 0, new Case() {
+				@Override
+				void run() {
+					cells[0] = pipeline.bernsen(p.cells).apply(15, 15);
+				}
+			});
+
+			final BitMask vessels = BitMask.ofForeground(SyntheticImage.mask(p.bloodVessels).getProcessor());
+			final BitMask[] overlapping = new BitMask[1];
+			measure("mask and", size, 0, new Case() {
+				@Override
+				void run() {
+					overlapping[0] = BitMask.ofForeground(cells[0].getProcessor()).and(vessels);
+				}
+			});
+
+			final CellLabels[] labels = new CellLabels[1];
+			measure("label cells", size, 0, new Case() {
+				@Override
+				void run() {
+					labels[0] = CellLabels.label(cells[0].getProcessor(), 20, true, threads > 0 ? threads : Prefs.getThreads());
+				}
+			});
+
+			measure("measure cells", size, 0, new Case() {
+				@Override
+				void run() {
+					CellMeasurements.measure(labels[0].labels, labels[0].count, overlapping[0], p.cells1.getProcessor(), p.cells2.getProcessor());
+				}
+			});
+
+			final String roiPath = params.outputPath + "benchmark_rois.zip";
+			measure("save rois", size, 0, new Case() {
+				@Override
+				void run() throws IOException {
+					if (labels[0].count > 0) {
+						pipeline.outputs.saveRois(labels[0].rois(), roiPath);
+					}
+				}
+			});
+
+			if (classifierPath == null) {
+				IJ.log("No classifier= given, skipping the end-to-end benchmark");
+				return;
+			}
+			final int nSlices = slices[slices.length - 1];
+			measure("end to end", size, nSlices, new Case() {
+				@Override
+				void run() throws Exception {
+					LoadedImage image = new LoadedImage();
+					image.imageName = "benchmark";
+					image.projections = StackProjector.project(source, nSlices, size, size, new Calibration(), params);
+					image.pixelWidth = 1;
+					image.pixelHeight = 1;
+					image.units = "pixels";
+					pipeline.write(pipeline.compute(image));
+				}
+			});
+		}
+
+		abstract static class Case {
+			void setUp() throws Exception {}
+			abstract void run() throws Exception;
+		}
+
+		private void measure(String name, int size, int nSlices, Case c) throws Exception {
+			long[] times = new long[iterations];
+			for (int i = -warmup; i < iterations; i++) {
+				c.setUp();
+				long start = System.nanoTime();
+				c.run();
+				long elapsed = System.nanoTime() - start;
+				if (i >= 0) {
+					times[i] = elapsed;
+				}
+			}
+			long total = 0;
+			long min = Long.MAX_VALUE;
+			long max = 0;
+			for (long t : times) {
+				total += t;
+				min = Math.min(min, t);
+				max = Math.max(max, t);
+			}
+			double mean = iterations > 0 ? total / 1e6 / iterations : 0;
+			table.addValue("Benchmark", name);
+			table.addValue("Size", size);
+			table.addValue("Slices", nSlices);
+			table.addValue("Iterations", iterations);
+			table.addValue("Mean (ms)", mean);
+			table.addValue("p50 (ms)", StageProfiler.percentile(times, 50) / 1e6);
+			table.addValue("Min (ms)", iterations > 0 ? min / 1e6 : 0);
+			table.addValue("Max (ms)", max / 1e6);
+			table.addRow();
+			IJ.log(name + " " + size + "x" + size + (nSlices > 0 ? " x" + nSlices : "") + ": " + IJ.d2s(mean, 1) + " ms");
+		}
+	}
+
+
+	// DETERMINISTIC 16-BIT TEST IMAGES: WINDING TUBES ON A NOISY BACKGROUND IN CHANNEL 1,
+	// ROUND CELLS OF VARYING SIZE AND BRIGHTNESS IN CHANNELS 2 AND 3, SOME OF THEM ON VESSELS
+	static class SyntheticImage {
+
+		static ImageProcessor[] planes(int width, int height, long seed) {
+			Random random = new Random(seed);
+			short[] vessels = background(width, height, 200, 40, random);
+			short[] cells1 = background(width, height, 100, 30, random);
+			short[] cells2 = background(width, height, 100, 30, random);
+
+			// ABOUT ONE VESSEL PER 200 ROWS, EACH A SINE CURVE ACROSS THE WHOLE WIDTH
+			int nVessels = Math.max(1, height / 200);
+			for (int v = 0; v < nVessels; v++) {
+				double centre = random.nextDouble() * height;
+				double amplitude = 20 + random.nextDouble() * 60;
+				double period = 200 + random.nextDouble() * 800;
+				double phase = random.nextDouble() * 2 * Math.PI;
+				double halfWidth = 3 + random.nextDouble() * 6;
+				int reach = (int)Math.ceil(2 * halfWidth);
+				for (int x = 0; x < width; x++) {
+					double yc = centre + amplitude * Math.sin(2 * Math.PI * x / period + phase);
+					for (int y = Math.max(0, (int)yc - reach); y <= Math.min(height - 1, (int)yc + reach); y++) {
+						double d = (y - yc) / halfWidth;
+						add(vessels, y * width + x, 3000 * Math.exp(-d * d));
+					}
+				}
+			}
+
+			// ABOUT ONE CELL PER 64 x 64 PIXELS
+			int nCells = Math.max(1, (int)((long)width * height / 4096));
+			for (int c = 0; c < nCells; c++) {
+				int cx = random.nextInt(width);
+				int cy = random.nextInt(height);
+				int r = 3 + random.nextInt(8);
+				double brightness1 = 1000 + random.nextDouble() * 2000;
+				double brightness2 = random.nextDouble() * 2000;
+				for (int y = Math.max(0, cy - r); y <= Math.min(height - 1, cy + r); y++) {
+					for (int x = Math.max(0, cx - r); x <= Math.min(width - 1, cx + r); x++) {
+						int dx = x - cx;
+						int dy = y - cy;
+						if (dx * dx + dy * dy <= r * r) {
+							add(cells1, y * width + x, brightness1);
+							add(cells2, y * width + x, brightness2);
+						}
+					}
+				}
+			}
+			return new ImageProcessor[]{
+					new ShortProcessor(width, height, vessels, null),
+					new ShortProcessor(width, height, cells1, null),
+					new ShortProcessor(width, height, cells2, null) };
+		}
+
+		// THE VESSEL TUBES AS A BINARY MASK, FOR CASES THAT RUN WITHOUT A CLASSIFIER
+		static ImagePlus mask(ImagePlus projection) {
+			ImageProcessor ip = projection.getProcessor();
+			int n = ip.getWidth() * ip.getHeight();
+			double mean = 0;
+			for (int i = 0; i < n; i++) {
+				mean += ip.getf(i);
+			}
+			mean /= n;
+			byte[] mask = new byte[n];
+			for (int i = 0; i < n; i++) {
+				if (ip.getf(i) > 2 * mean) {
+					mask[i] = (byte)255;
+				}
+			}
+			return new ImagePlus("Vessel Mask", new ByteProcessor(ip.getWidth(), ip.getHeight(), mask));
+		}
+
+		private static short[] background(int width, int height, int mean, int noise, Random random) {
+			short[] pixels = new short[width * height];
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = (short)(mean + random.nextInt(noise));
+			}
+			return pixels;
+		}
+
+		private static void add(short[] pixels, int i, double value) {
+			pixels[i] = (short)Math.min(65535, (pixels[i] & 0xffff) + (int)value);
+		}
+	}
+}